@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * manifests the benchmarks run against
+ */
+public final class BenchmarkCorpus {
+
+    /**
+     * directory with bundled manifests, benchmarks are expected to run from project basedir
+     */
+    public static final String PUPPET42_DIR = System.getProperty("puppet42.dir", "src/main/puppet42");
+
+    private BenchmarkCorpus() {
+    }
+
+    /**
+     * @param corpus either "puppet42" for the bundled manifests or number of lines of generated manifest
+     */
+    public static List<String> get(String corpus) throws IOException {
+        if ("puppet42".equals(corpus)) {
+            return puppet42();
+        }
+        return Arrays.asList(synthetic(Integer.parseInt(corpus)));
+    }
+
+    public static List<String> puppet42() throws IOException {
+        File dir = new File(PUPPET42_DIR);
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("No manifests found in " + dir.getAbsolutePath());
+        }
+        Arrays.sort(files);
+        List<String> toRet = new ArrayList<>();
+        for (File f : files) {
+            if (f.getName().endsWith(".pp")) {
+                toRet.add(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8));
+            }
+        }
+        return toRet;
+    }
+
+    /**
+     * generates a manifest of roughly given number of lines, a mix of classes, defines and node
+     * definitions with parameters, resources, conditions, case statements and function calls.
+     */
+    public static String synthetic(int lines) {
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        int i = 0;
+        while (count < lines) {
+            switch (i % 3) {
+                case 0:
+                    sb.append("class module").append(i).append("::config (\n")
+                      .append("  String $package = 'pkg").append(i).append("',\n")
+                      .append("  $ensure = present,\n")
+                      .append("  $options = { 'a' => 1, 'b' => [1, 2, 3] },\n")
+                      .append(") inherits module").append(i).append("::params {\n")
+                      .append("  include module").append(i).append("::install, stdlib\n")
+                      .append("  $config_dir = \"${::confdir}/module").append(i).append("\"\n")
+                      .append("  file { \"${config_dir}/config.conf\":\n")
+                      .append("    ensure  => $ensure,\n")
+                      .append("    owner   => 'root',\n")
+                      .append("    mode    => '0644',\n")
+                      .append("    content => template('module").append(i).append("/config.conf.erb'),\n")
+                      .append("    require => Package[$package],\n")
+                      .append("  }\n")
+                      .append("  if $::osfamily == 'RedHat' {\n")
+                      .append("    $service = 'svc-rh'\n")
+                      .append("  } elsif $::osfamily == 'Debian' {\n")
+                      .append("    $service = 'svc-deb'\n")
+                      .append("  } else {\n")
+                      .append("    fail(\"unsupported ${::osfamily}\")\n")
+                      .append("  }\n")
+                      .append("}\n\n");
+                    count += 23;
+                    break;
+                case 1:
+                    sb.append("# a define\n")
+                      .append("define module").append(i).append("::vhost ($port, $docroot = '/var/www') {\n")
+                      .append("  case $::operatingsystem {\n")
+                      .append("    'CentOS', 'RedHat': { $conf = '/etc/httpd' }\n")
+                      .append("    default: { $conf = '/etc/apache2' }\n")
+                      .append("  }\n")
+                      .append("  exec { \"reload-${name}\":\n")
+                      .append("    command     => \"/usr/sbin/apachectl -k graceful\",\n")
+                      .append("    refreshonly => true,\n")
+                      .append("    unless      => '/bin/false',\n")
+                      .append("  }\n")
+                      .append("  notify { $name: message => sprintf('%s:%s', $docroot, $port) }\n")
+                      .append("}\n\n");
+                    count += 14;
+                    break;
+                default:
+                    sb.append("node 'web").append(i).append(".example.com', /^db\\d+$/ {\n")
+                      .append("  class { 'module").append(i - 2).append("::config':\n")
+                      .append("    package => 'httpd',\n")
+                      .append("  }\n")
+                      .append("  module").append(i - 1).append("::vhost { 'site':\n")
+                      .append("    port => 80,\n")
+                      .append("  }\n")
+                      .append("  service { ['a', 'b']: ensure => running }\n")
+                      .append("}\n\n");
+                    count += 10;
+            }
+            i++;
+        }
+        return sb.toString();
+    }
+}
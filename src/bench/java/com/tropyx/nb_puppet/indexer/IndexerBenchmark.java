@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.indexer;
+
+import com.tropyx.nb_puppet.BenchmarkCorpus;
+import com.tropyx.nb_puppet.PPConstants;
+import com.tropyx.nb_puppet.parser.PElement;
+import com.tropyx.nb_puppet.parser.PuppetParserFactory;
+import com.tropyx.nb_puppet.parser.PuppetParserResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.netbeans.editor.BaseDocument;
+import org.netbeans.modules.parsing.api.ResultIterator;
+import org.netbeans.modules.parsing.api.Snapshot;
+import org.netbeans.modules.parsing.api.Source;
+import org.netbeans.modules.parsing.api.UserTask;
+import org.netbeans.modules.parsing.spi.Parser;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * field extraction of PPIndexer over already parsed files, the documents counter
+ * reports documents/sec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexerBenchmark {
+
+    /**
+     * "puppet42" for the bundled manifests, otherwise number of lines of generated manifest
+     */
+    @Param({"puppet42", "1000", "10000", "100000"})
+    public String corpus;
+
+    private final List<PElement> roots = new ArrayList<>();
+
+    @Setup
+    public void setup() throws Exception {
+        UserTask task = new UserTask() {
+            @Override
+            public void run(ResultIterator resultIterator) throws Exception {
+            }
+        };
+        for (String text : BenchmarkCorpus.get(corpus)) {
+            BaseDocument bd = new BaseDocument(false, PPConstants.MIME_TYPE);
+            bd.insertString(0, text, null);
+            Snapshot snap = Source.create(bd).createSnapshot();
+            Parser parser = new PuppetParserFactory().createParser(Collections.singleton(snap));
+            parser.parse(snap, task, null);
+            roots.add(((PuppetParserResult)parser.getResult(task)).getRootNode());
+        }
+    }
+
+    @Benchmark
+    public int index(Counters counters) {
+        CountingFields fields = new CountingFields();
+        for (PElement root : roots) {
+            PPIndexer.index(root, fields);
+            counters.documents++;
+        }
+        return fields.count;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long documents;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            documents = 0;
+        }
+    }
+
+    private static class CountingFields implements PPIndexer.Fields {
+        int count;
+
+        @Override
+        public void addPair(String key, String value, boolean searchable, boolean stored) {
+            count = count + key.length() + value.length();
+        }
+    }
+}
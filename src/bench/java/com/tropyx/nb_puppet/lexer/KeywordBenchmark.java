@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.lexer;
+
+import com.tropyx.nb_puppet.BenchmarkCorpus;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Word lookup as done by PLexer for every lower case word, {@link PKeywords} against a HashMap
+ * of the same words. {@link #hashMap() } gains from the hash code cached in the corpus strings,
+ * {@link #hashMapNewString() } hashes a new string per word as the lexer would. Whole lexer throughput
+ * before and after is LexerBenchmark run on both revisions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeywordBenchmark {
+
+    @Param({"puppet42", "1000", "10000", "100000"})
+    public String corpus;
+
+    private static final Pattern WORD = Pattern.compile("[a-z][a-z0-9_]*");
+
+    private String[] words;
+    private char[][] chars;
+    private Map<String, PTokenId> map;
+
+    @Setup
+    public void setup() throws Exception {
+        List<String> toRet = new ArrayList<>();
+        for (String text : BenchmarkCorpus.get(corpus)) {
+            Matcher m = WORD.matcher(text);
+            while (m.find()) {
+                toRet.add(m.group());
+            }
+        }
+        words = toRet.toArray(new String[0]);
+        chars = new char[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            chars[i] = words[i].toCharArray();
+        }
+        map = new HashMap<>();
+        for (PTokenId id : PTokenId.values()) {
+            if (id.fixedText() != null && WORD.matcher(id.fixedText()).matches()) {
+                map.put(id.fixedText(), id);
+            }
+        }
+    }
+
+    @Benchmark
+    public int perfectHash() {
+        int hits = 0;
+        for (String word : words) {
+            if (PKeywords.find(word) != null) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    @Benchmark
+    public int hashMap() {
+        int hits = 0;
+        for (String word : words) {
+            if (map.get(word) != null) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    @Benchmark
+    public int hashMapNewString() {
+        int hits = 0;
+        for (char[] word : chars) {
+            if (map.get(new String(word)) != null) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+}
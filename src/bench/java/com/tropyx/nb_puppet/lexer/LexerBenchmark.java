@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.lexer;
+
+import com.tropyx.nb_puppet.BenchmarkCorpus;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.netbeans.api.lexer.Language;
+import org.netbeans.api.lexer.TokenHierarchy;
+import org.netbeans.api.lexer.TokenSequence;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * lexing of whole files with PLexer including the embedded string tokens,
+ * the tokens counter reports tokens/sec and bytesPerToken the allocations of the lexing thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+
+    /**
+     * "puppet42" for the bundled manifests, "fuzz" for the mutated manifests of PLexerTest,
+     * otherwise number of lines of generated manifest
+     */
+    @Param({"puppet42", "fuzz", "1000", "10000", "100000"})
+    public String corpus;
+
+    private List<String> texts;
+    private Language<PTokenId> language;
+
+    @Setup
+    public void setup() throws Exception {
+        if ("fuzz".equals(corpus)) {
+            ManifestFuzzer fuzzer = new ManifestFuzzer(0);
+            texts = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                texts.add(fuzzer.mutate(fuzzer.manifest(100), 50));
+            }
+        } else {
+            texts = BenchmarkCorpus.get(corpus);
+        }
+        language = new PLangHierarchy().language();
+    }
+
+    @Benchmark
+    public void lex(Counters counters, Allocations allocations, Blackhole bh) {
+        long allocated = allocations.allocatedBytes();
+        long tokens = 0;
+        for (String text : texts) {
+            tokens += lex(TokenHierarchy.create(text, language).tokenSequence(language), bh);
+        }
+        counters.tokens += tokens;
+        allocations.add(allocations.allocatedBytes() - allocated, tokens);
+    }
+
+    private static int lex(TokenSequence<?> ts, Blackhole bh) {
+        int count = 0;
+        while (ts.moveNext()) {
+            bh.consume(ts.token());
+            count++;
+            TokenSequence<?> embedded = ts.embedded();
+            if (embedded != null) {
+                count += lex(embedded, bh);
+            }
+        }
+        return count;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    /**
+     * reported as is, not as rate. Run with -prof gc to compare with the total allocation rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Allocations {
+        public long bytesPerToken;
+        private long bytes;
+        private long tokens;
+        private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesPerToken = bytes = tokens = 0;
+        }
+
+        long allocatedBytes() {
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        void add(long allocated, long lexed) {
+            bytes += allocated;
+            tokens += lexed;
+            bytesPerToken = tokens > 0 ? bytes / tokens : 0;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.parser;
+
+import com.tropyx.nb_puppet.BenchmarkCorpus;
+import com.tropyx.nb_puppet.PPConstants;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.netbeans.api.lexer.TokenSequence;
+import org.netbeans.editor.BaseDocument;
+import org.netbeans.modules.parsing.api.ResultIterator;
+import org.netbeans.modules.parsing.api.Snapshot;
+import org.netbeans.modules.parsing.api.Source;
+import org.netbeans.modules.parsing.api.UserTask;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * full parse of already lexed snapshots, the elements counter reports elements/sec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    /**
+     * "puppet42" for the bundled manifests, otherwise number of lines of generated manifest
+     */
+    @Param({"puppet42", "1000", "10000", "100000"})
+    public String corpus;
+
+    private final List<Snapshot> snapshots = new ArrayList<>();
+    private int elements;
+    private final UserTask task = new UserTask() {
+        @Override
+        public void run(ResultIterator resultIterator) throws Exception {
+        }
+    };
+
+    @Setup
+    public void setup() throws Exception {
+        for (String text : BenchmarkCorpus.get(corpus)) {
+            BaseDocument bd = new BaseDocument(false, PPConstants.MIME_TYPE);
+            bd.insertString(0, text, null);
+            Snapshot snap = Source.create(bd).createSnapshot();
+            //lex everything upfront, only parsing is measured
+            TokenSequence<?> ts = snap.getTokenHierarchy().tokenSequence();
+            while (ts.moveNext()) {
+                ts.token();
+            }
+            snapshots.add(snap);
+            PuppetParser parser = new PuppetParser();
+            parser.parse(snap, task, null);
+            elements += ((PuppetParserResult)parser.getResult(task)).getStats().getElementCount();
+        }
+    }
+
+    @Benchmark
+    public void parse(Counters counters, Blackhole bh) throws Exception {
+        for (Snapshot snap : snapshots) {
+            PuppetParser parser = new PuppetParser();
+            parser.parse(snap, task, null);
+            bh.consume(parser.getResult(task));
+        }
+        counters.elements += elements;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long elements;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            elements = 0;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.parser;
+
+import com.tropyx.nb_puppet.BenchmarkCorpus;
+import com.tropyx.nb_puppet.lexer.PLangHierarchy;
+import com.tropyx.nb_puppet.lexer.PTokenId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.netbeans.api.lexer.Language;
+import org.netbeans.api.lexer.TokenHierarchy;
+import org.netbeans.api.lexer.TokenSequence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stop token lookup as done by fastForward for every scanned token, the previous
+ * Arrays.asList(stopTokens).contains() against the EnumSet constants.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StopSetBenchmark {
+
+    @Param({"puppet42", "1000", "10000", "100000"})
+    public String corpus;
+
+    private static final PTokenId[] STOP_ARRAY = new PTokenId[] {PTokenId.COMMA, PTokenId.RBRACE};
+    private static final Set<PTokenId> STOP_SET = EnumSet.of(PTokenId.COMMA, PTokenId.RBRACE);
+
+    private PTokenId[] ids;
+
+    @Setup
+    public void setup() throws Exception {
+        Language<PTokenId> language = new PLangHierarchy().language();
+        List<PTokenId> toRet = new ArrayList<>();
+        for (String text : BenchmarkCorpus.get(corpus)) {
+            TokenSequence<PTokenId> ts = TokenHierarchy.create(text, language).tokenSequence(language);
+            while (ts.moveNext()) {
+                toRet.add(ts.token().id());
+            }
+        }
+        ids = toRet.toArray(new PTokenId[0]);
+    }
+
+    @Benchmark
+    public int arraysAsList() {
+        int stops = 0;
+        for (PTokenId id : ids) {
+            //list created per token like the old fastForward did per call
+            if (Arrays.asList(STOP_ARRAY).contains(id)) {
+                stops++;
+            }
+        }
+        return stops;
+    }
+
+    @Benchmark
+    public int enumSet() {
+        int stops = 0;
+        for (PTokenId id : ids) {
+            if (STOP_SET.contains(id)) {
+                stops++;
+            }
+        }
+        return stops;
+    }
+}
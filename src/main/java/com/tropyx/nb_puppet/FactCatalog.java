@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.openide.filesystems.FileAttributeEvent;
+import org.openide.filesystems.FileChangeListener;
+import org.openide.filesystems.FileEvent;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileRenameEvent;
+import org.openide.filesystems.FileUtil;
+
+/**
+ * Names of the facter facts (global variables) contributed to the palette,
+ * shared by completion, semantic coloring and hyperlinking.
+ * The set is built on first use and rebuilt only after the palette folder changes.
+ */
+public final class FactCatalog {
+
+    private static final String FOLDER = "PuppetPalette/Puppet Variables";
+
+    private static final FactCatalog INSTANCE = new FactCatalog();
+
+    private volatile Set<String> facts;
+    private boolean listening;
+
+    private FactCatalog() {
+    }
+
+    public static FactCatalog getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return immutable set of fact names, without $ and ::
+     */
+    public Set<String> getFacts() {
+        Set<String> toRet = facts;
+        if (toRet == null) {
+            toRet = load();
+        }
+        return toRet;
+    }
+
+    /**
+     * @param name variable name, possibly with leading $ and top scope ::
+     */
+    public boolean isFact(String name) {
+        if (name.startsWith("$")) {
+            name = name.substring(1);
+        }
+        if (name.startsWith("::")) {
+            name = name.substring(2);
+        }
+        return getFacts().contains(name);
+    }
+
+    private synchronized Set<String> load() {
+        Set<String> current = facts;
+        if (current != null) {
+            return current;
+        }
+        FileObject dir = FileUtil.getConfigFile(FOLDER);
+        if (dir == null) {
+            return Collections.emptySet();
+        }
+        if (!listening) {
+            // the palette folder comes from module layers, changes when modules get enabled or disabled
+            dir.getParent().addRecursiveListener(new Invalidator());
+            listening = true;
+        }
+        Set<String> toRet = new LinkedHashSet<>();
+        for (FileObject ch : dir.getChildren()) {
+            toRet.add(ch.getName());
+        }
+        current = Collections.unmodifiableSet(toRet);
+        facts = current;
+        return current;
+    }
+
+    private final class Invalidator implements FileChangeListener {
+
+        private void invalidate(FileEvent fe) {
+            String path = fe.getFile().getPath();
+            if (path.startsWith(FOLDER)) {
+                facts = null;
+            }
+        }
+
+        @Override
+        public void fileFolderCreated(FileEvent fe) {
+            invalidate(fe);
+        }
+
+        @Override
+        public void fileDataCreated(FileEvent fe) {
+            invalidate(fe);
+        }
+
+        @Override
+        public void fileChanged(FileEvent fe) {
+        }
+
+        @Override
+        public void fileDeleted(FileEvent fe) {
+            invalidate(fe);
+        }
+
+        @Override
+        public void fileRenamed(FileRenameEvent fe) {
+            invalidate(fe);
+        }
+
+        @Override
+        public void fileAttributeChanged(FileAttributeEvent fe) {
+        }
+    }
+}
@@ -31,6 +31,8 @@ public final class PPConstants {
     @StaticResource
     public static final String VARIABLE_ICON = "com/tropyx/nb_puppet/resources/variable.png";
     public static final String MIME_TYPE = "text/x-puppet-manifest";
+    /** embedded in double quoted strings and heredocs */
+    public static final String STRING_MIME_TYPE = "text/x-puppet-string";
     @StaticResource
     public static final String ICON_PUPPET_FILE = "com/tropyx/nb_puppet/resources/puppet16.png";
 
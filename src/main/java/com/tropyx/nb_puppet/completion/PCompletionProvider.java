@@ -17,27 +17,35 @@
 
 package com.tropyx.nb_puppet.completion;
 
+import com.tropyx.nb_puppet.FactCatalog;
 import com.tropyx.nb_puppet.PPConstants;
 import com.tropyx.nb_puppet.indexer.PPIndexer;
 import com.tropyx.nb_puppet.indexer.PPIndexerFactory;
+import com.tropyx.nb_puppet.indexer.PPNameIndex;
+import com.tropyx.nb_puppet.indexer.PPNameTrie;
 import com.tropyx.nb_puppet.lexer.PLangHierarchy;
+import com.tropyx.nb_puppet.lexer.PStringTokenId;
 import com.tropyx.nb_puppet.lexer.PTokenId;
 import com.tropyx.nb_puppet.parser.PClass;
 import com.tropyx.nb_puppet.parser.PClassParam;
 import com.tropyx.nb_puppet.parser.PElement;
 import com.tropyx.nb_puppet.parser.PuppetParserResult;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import javax.swing.text.JTextComponent;
 import org.netbeans.api.editor.mimelookup.MimeRegistration;
 import org.netbeans.api.lexer.Token;
 import org.netbeans.api.lexer.TokenSequence;
+import org.netbeans.api.lexer.TokenUtilities;
 import org.netbeans.modules.parsing.api.ParserManager;
 import org.netbeans.modules.parsing.api.ResultIterator;
 import org.netbeans.modules.parsing.api.Source;
@@ -52,11 +60,14 @@ import org.netbeans.spi.editor.completion.CompletionResultSet;
 import org.netbeans.spi.editor.completion.CompletionTask;
 import org.netbeans.spi.editor.completion.support.AsyncCompletionQuery;
 import org.netbeans.spi.editor.completion.support.AsyncCompletionTask;
+import org.openide.filesystems.FileObject;
 import org.openide.util.Exceptions;
 
 @MimeRegistration(service = CompletionProvider.class, mimeType = PPConstants.MIME_TYPE)
 public class PCompletionProvider implements CompletionProvider {
 
+    private static final PPNameTrie FUNCTIONS = createFunctions();
+
     @Override
     public CompletionTask createTask(final int queryType, JTextComponent component) {
         if (queryType != CompletionProvider.COMPLETION_QUERY_TYPE && queryType != CompletionProvider.COMPLETION_ALL_QUERY_TYPE) return null;
@@ -120,14 +131,31 @@ public class PCompletionProvider implements CompletionProvider {
                                 }
                                 completeVariables[0] = true;
                             }
-                            if (token.id() == PTokenId.STRING_LITERAL) {
-                                int currentInText = caretOffset - ts.offset();
-                                String text = token.text().toString().substring(0, currentInText);
-                                int start = text.lastIndexOf("${");
-                                if (start != -1 && start < currentInText && text.indexOf("}", start) == -1) {
-                                    pref = text.substring(start, text.length()).replace("${", "$");
-                                    completeVariables[0] = true;
-                                    completeVariablesInString[0] = true;
+                            if (token.id() == PTokenId.STRING_LITERAL || token.id() == PTokenId.INTERPOLATED_HEREDOC_BODY) {
+                                TokenSequence<PStringTokenId> ets = ts.embedded(PStringTokenId.language());
+                                if (ets != null) {
+                                    //the token containing the caret or ending at it
+                                    ets.move(caretOffset);
+                                    if (!ets.moveNext() || ets.offset() == caretOffset) {
+                                        ets.movePrevious();
+                                    }
+                                    Token<PStringTokenId> inner = ets.token();
+                                    if (inner != null && inner.id() == PStringTokenId.INTERPOLATION
+                                            && TokenUtilities.equals(inner.text(), "${") && ets.offset() + 2 == caretOffset) {
+                                        pref = "$";
+                                        completeVariables[0] = true;
+                                        completeVariablesInString[0] = true;
+                                    } else if (inner != null && inner.id() == PStringTokenId.VARIABLE) {
+                                        String name = inner.text().subSequence(0, caretOffset - ets.offset()).toString();
+                                        boolean braced = name.isEmpty() || name.charAt(0) != '$';
+                                        //the item inserts the closing }, so only complete unclosed ${
+                                        boolean closed = braced && ets.moveNext() && TokenUtilities.startsWith(ets.token().text(), "}");
+                                        if (!closed) {
+                                            pref = PStringTokenId.variableName(name);
+                                            completeVariables[0] = true;
+                                            completeVariablesInString[0] = braced;
+                                        }
+                                    }
                                 }
                             }
                             if (pref != null) {
@@ -153,13 +181,24 @@ public class PCompletionProvider implements CompletionProvider {
                 }
                 if (completeClasses[0]) {
                     boolean thisProjectOnly = checkAndMarkQueryType(queryType, completionResultSet);
-                    try {
-                        QuerySupport qs = PPIndexerFactory.getQuerySupportFor(document, !thisProjectOnly);
-                        for (IndexResult res : qs.query(PPIndexer.FLD_CLASS, "" + prefix[0], QuerySupport.Kind.PREFIX, PPIndexer.FLD_ROOT)) {
-                            completionResultSet.addItem(new PPCompletionItem(prefix[0], res.getValue(PPIndexer.FLD_ROOT), caretOffset));
+                    List<PPNameIndex> names = getNameIndexes(document, thisProjectOnly);
+                    if (names != null) {
+                        Set<String> found = new HashSet<>();
+                        for (PPNameIndex index : names) {
+                            index.findClasses(prefix[0], found);
+                        }
+                        for (String clazz : found) {
+                            completionResultSet.addItem(new PPCompletionItem(prefix[0], clazz, caretOffset));
+                        }
+                    } else {
+                        try {
+                            QuerySupport qs = PPIndexerFactory.getQuerySupportFor(document, !thisProjectOnly);
+                            for (IndexResult res : qs.query(PPIndexer.FLD_CLASS, "" + prefix[0], QuerySupport.Kind.PREFIX, PPIndexer.FLD_ROOT)) {
+                                completionResultSet.addItem(new PPCompletionItem(prefix[0], res.getValue(PPIndexer.FLD_ROOT), caretOffset));
+                            }
+                        } catch (IOException ex) {
+                            Exceptions.printStackTrace(ex);
                         }
-                    } catch (IOException ex) {
-                        Exceptions.printStackTrace(ex);
                     }
                     completionResultSet.finish();
                     return;
@@ -189,28 +228,44 @@ public class PCompletionProvider implements CompletionProvider {
                                     }
                                 }
                             }
-                            try {
-                                QuerySupport qs = PPIndexerFactory.getQuerySupportFor(document, !thisProjectOnly);
-                                QuerySupport.Query.Factory qf = qs.getQueryFactory();
-                                //TODO how to query just aaa::params::a|
-                                // we would need to split on :: and do exact match on class and prefix on var name
-                                QuerySupport.Query query =
-                                    qf.or(
-                                        qf.field(PPIndexer.FLD_VAR, "" + pref, QuerySupport.Kind.PREFIX),
-                                        qf.field(PPIndexer.FLD_ROOT, "" + pref, QuerySupport.Kind.PREFIX)
-                                    );
-                                for (IndexResult res : query.execute(PPIndexer.FLD_VAR, PPIndexer.FLD_ROOT)) {
-                                    String clazz = res.getValue(PPIndexer.FLD_ROOT);
-                                    for (String val : new HashSet<>(Arrays.asList(res.getValues(PPIndexer.FLD_VAR)))) {
-                                        if (val.startsWith(pref) || clazz.startsWith(pref)) {
-                                            completionResultSet.addItem(new PPVariableCompletionItem(prefix[0], val, caretOffset, clazz, currentName, inherits, completeVariablesInString[0]));
+                            //top scope ::var are in the name index with an empty class name
+                            List<PPNameIndex> names = getNameIndexes(document, thisProjectOnly);
+                            if (names != null) {
+                                Set<String> found = new HashSet<>();
+                                for (PPNameIndex index : names) {
+                                    index.findVariables(pref, found);
+                                }
+                                for (String qualified : found) {
+                                    int classEnd = qualified.lastIndexOf("::");
+                                    completionResultSet.addItem(new PPVariableCompletionItem(prefix[0], qualified.substring(classEnd + 2), caretOffset, qualified.substring(0, classEnd), currentName, inherits, completeVariablesInString[0]));
+                                }
+                            } else {
+                                try {
+                                    QuerySupport qs = PPIndexerFactory.getQuerySupportFor(document, !thisProjectOnly);
+                                    int classEnd = pref.lastIndexOf("::");
+                                    if (classEnd > 0) {
+                                        completeQualifiedVariables(qs, pref, pref.substring(0, classEnd), completionResultSet, prefix[0], caretOffset, currentName, inherits, completeVariablesInString[0]);
+                                    } else {
+                                        QuerySupport.Query.Factory qf = qs.getQueryFactory();
+                                        QuerySupport.Query query =
+                                            qf.or(
+                                                qf.field(PPIndexer.FLD_VAR, "" + pref, QuerySupport.Kind.PREFIX),
+                                                qf.field(PPIndexer.FLD_ROOT, "" + pref, QuerySupport.Kind.PREFIX)
+                                            );
+                                        for (IndexResult res : query.execute(PPIndexer.FLD_VAR, PPIndexer.FLD_ROOT)) {
+                                            String clazz = res.getValue(PPIndexer.FLD_ROOT);
+                                            for (String val : new HashSet<>(Arrays.asList(res.getValues(PPIndexer.FLD_VAR)))) {
+                                                if (val.startsWith(pref) || clazz.startsWith(pref)) {
+                                                    completionResultSet.addItem(new PPVariableCompletionItem(prefix[0], val, caretOffset, clazz, currentName, inherits, completeVariablesInString[0]));
+                                                }
+                                            }
                                         }
                                     }
+                                } catch (IOException ex) {
+                                    Exceptions.printStackTrace(ex);
                                 }
-                            } catch (IOException ex) {
-                                Exceptions.printStackTrace(ex);
                             }
-                            for (String glob : GlobalVarsFromPalette.get()) {
+                            for (String glob : FactCatalog.getDefault().getFacts()) {
                                 if (glob.startsWith(pref)) {
                                     completionResultSet.addItem(new PPVariableCompletionItem(prefix[0], glob, caretOffset, "", currentName, inherits, completeVariablesInString[0]));
                                 }
@@ -227,16 +282,69 @@ public class PCompletionProvider implements CompletionProvider {
     }
 
     private void completeFunctions(String prefix, CompletionResultSet completionResultSet, int offset) {
+        List<String> found = new ArrayList<>();
+        FUNCTIONS.find(prefix, found);
+        for (String name : found) {
+            completionResultSet.addItem(new PPFunctionCompletionItem(prefix, name, offset));
+        }
+    }
+
+    /**
+     * keyword and builtin functions, built once, only read afterwards
+     */
+    private static PPNameTrie createFunctions() {
+        PPNameTrie trie = new PPNameTrie();
         for (PTokenId token : PTokenId.values()) {
             if (PTokenId.Category.FUNCTION.equals(token.primaryCategory())) {
                 String name = token.name().toLowerCase(Locale.ENGLISH);
-                if (name.startsWith(prefix)) {
-                    completionResultSet.addItem(new PPFunctionCompletionItem(prefix, name, offset));
-                }
+                trie.add(name, name);
             }
         }
         for (String builtin : BuiltInFunctions.get()) {
-            completionResultSet.addItem(new PPFunctionCompletionItem(prefix, builtin, offset));
+            trie.add(builtin, builtin);
+        }
+        return trie;
+    }
+
+    /**
+     * @return in memory names of the queried roots, null if the names of a root cannot be loaded
+     */
+    private static List<PPNameIndex> getNameIndexes(Document document, boolean thisProjectOnly) {
+        Collection<FileObject> roots = PPIndexerFactory.getRootsFor(document, !thisProjectOnly);
+        List<PPNameIndex> toRet = new ArrayList<>(roots.size());
+        for (FileObject root : roots) {
+            PPNameIndex index = PPNameIndex.forRoot(root);
+            if (index == null) {
+                return null;
+            }
+            toRet.add(index);
+        }
+        return toRet;
+    }
+
+    /**
+     * aaa::params::a| only needs the documents of class aaa::params, exact match on the class
+     * and prefix on the qualified variable.
+     */
+    private void completeQualifiedVariables(QuerySupport qs, String pref, String clazz, CompletionResultSet completionResultSet,
+            String prefix, int caretOffset, String currentName, String inherits, boolean inString) throws IOException {
+        QuerySupport.Query.Factory qf = qs.getQueryFactory();
+        QuerySupport.Query query =
+            qf.and(
+                qf.field(PPIndexer.FLD_ROOT, clazz, QuerySupport.Kind.EXACT),
+                qf.field(PPIndexer.FLD_QVAR, pref, QuerySupport.Kind.PREFIX)
+            );
+        Set<String> found = new HashSet<>();
+        for (IndexResult res : query.execute(PPIndexer.FLD_QVAR)) {
+            String[] values = res.getValues(PPIndexer.FLD_QVAR);
+            if (values == null) {
+                continue;
+            }
+            for (String val : values) {
+                if (val.startsWith(pref) && found.add(val)) {
+                    completionResultSet.addItem(new PPVariableCompletionItem(prefix, val.substring(clazz.length() + 2), caretOffset, clazz, currentName, inherits, inString));
+                }
+            }
         }
     }
 
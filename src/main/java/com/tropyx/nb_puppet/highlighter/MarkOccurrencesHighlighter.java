@@ -18,6 +18,7 @@
 package com.tropyx.nb_puppet.highlighter;
 
 import com.tropyx.nb_puppet.lexer.PLangHierarchy;
+import com.tropyx.nb_puppet.lexer.PStringTokenId;
 import com.tropyx.nb_puppet.lexer.PTokenId;
 import java.awt.Color;
 import java.lang.ref.WeakReference;
@@ -31,6 +32,7 @@ import javax.swing.text.StyleConstants;
 import org.netbeans.api.editor.settings.AttributesUtilities;
 import org.netbeans.api.lexer.Token;
 import org.netbeans.api.lexer.TokenSequence;
+import org.netbeans.api.lexer.TokenUtilities;
 import org.netbeans.modules.editor.NbEditorUtilities;
 import org.netbeans.spi.editor.highlighting.support.OffsetsBag;
 import org.openide.cookies.EditorCookie;
@@ -93,15 +95,20 @@ public class MarkOccurrencesHighlighter implements CaretListener {
                             if (token.id() == PTokenId.VARIABLE) {
                                 String variable = token.text().toString();
                                 addHighlights(ts, variable);
-                            } else if (token.id() == PTokenId.STRING_LITERAL) {
-                                String text = token.text().toString();
-                                int reloffset = offset - ts.offset();
-                                int start = text.substring(0, reloffset).lastIndexOf("${");
-                                if (start != -1 && start <= reloffset && text.indexOf("}", start) > reloffset) {
-                                    String var = text.substring(start, text.indexOf("}", start)).replace("${", "$");
-                                    addHighlights(ts, var);
+                            } else {
+                                TokenSequence<PStringTokenId> ets = ts.embedded(PStringTokenId.language());
+                                if (ets != null) {
+                                    ets.move(offset);
+                                    if (ets.moveNext() && ets.token().id() == PStringTokenId.INTERPOLATION
+                                            && TokenUtilities.equals(ets.token().text(), "${")) {
+                                        //caret at the ${ of ${name}
+                                        ets.moveNext();
+                                    }
+                                    Token<PStringTokenId> inner = ets.token();
+                                    if (inner != null && inner.id() == PStringTokenId.VARIABLE) {
+                                        addHighlights(ts, PStringTokenId.variableName(inner.text()));
+                                    }
                                 }
-                                
                             }
                         }
 
@@ -115,12 +122,13 @@ public class MarkOccurrencesHighlighter implements CaretListener {
                                         bag.addHighlight(ts.offset(), ts.offset() + token.length(), defaultColors);
                                     }
                                 }
-                                if (token.id() == PTokenId.STRING_LITERAL) {
-                                    String txt = token.text().toString();
-                                    int i = txt.indexOf(variable.replace("$", "${") + "}");
-                                    while (i > 0) {
-                                        bag.addHighlight(ts.offset() + i, ts.offset()  + i + variable.length() + 2, defaultColors);
-                                        i = txt.indexOf(variable.replace("$", "${") + "}", i + 1);
+                                if (token.id() == PTokenId.STRING_LITERAL || token.id() == PTokenId.INTERPOLATED_HEREDOC_BODY) {
+                                    TokenSequence<PStringTokenId> ets = ts.embedded(PStringTokenId.language());
+                                    while (ets != null && ets.moveNext()) {
+                                        Token<PStringTokenId> inner = ets.token();
+                                        if (inner.id() == PStringTokenId.VARIABLE && variable.equals(PStringTokenId.variableName(inner.text()))) {
+                                            bag.addHighlight(ets.offset(), ets.offset() + inner.length(), defaultColors);
+                                        }
                                     }
                                 }
                             }
@@ -1,9 +1,12 @@
 
 package com.tropyx.nb_puppet.hyperlink;
 
+import com.tropyx.nb_puppet.FactCatalog;
 import com.tropyx.nb_puppet.PPConstants;
 import com.tropyx.nb_puppet.PuppetProject;
 import com.tropyx.nb_puppet.completion.PCompletionProvider;
+import com.tropyx.nb_puppet.indexer.PPIndexer;
+import com.tropyx.nb_puppet.indexer.PPIndexerFactory;
 import com.tropyx.nb_puppet.parser.PBlob;
 import com.tropyx.nb_puppet.parser.PClass;
 import com.tropyx.nb_puppet.parser.PClassRef;
@@ -13,12 +16,18 @@ import com.tropyx.nb_puppet.parser.PIdentifier;
 import com.tropyx.nb_puppet.parser.PString;
 import com.tropyx.nb_puppet.parser.PVariable;
 import com.tropyx.nb_puppet.parser.PVariableDefinition;
+import com.tropyx.nb_puppet.parser.PuppetAstCache;
 import com.tropyx.nb_puppet.refactoring.PPWhereUsedQueryPlugin;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import org.netbeans.api.editor.mimelookup.MimeRegistration;
@@ -29,6 +38,8 @@ import org.netbeans.editor.Utilities;
 import org.netbeans.lib.editor.hyperlink.spi.HyperlinkProviderExt;
 import org.netbeans.lib.editor.hyperlink.spi.HyperlinkType;
 import org.netbeans.modules.editor.NbEditorUtilities;
+import org.netbeans.modules.parsing.spi.indexing.support.IndexResult;
+import org.netbeans.modules.parsing.spi.indexing.support.QuerySupport;
 import org.openide.cookies.EditCookie;
 import org.openide.cookies.LineCookie;
 import org.openide.cookies.OpenCookie;
@@ -76,9 +87,9 @@ public class PHyperlinkProvider implements HyperlinkProviderExt {
 
     @Override
     public void performClickAction(Document doc, int offset, HyperlinkType type) {
-        Tuple tup = getTuple(doc, offset);
-        if (tup != null) {
-            performJump(tup, doc);
+        CachedTuple cached = getCachedTuple(doc, offset);
+        if (cached.tuple != null && !cached.jumpToTarget()) {
+            performJump(cached.tuple, doc, cached);
         }
     }
 
@@ -95,6 +106,25 @@ public class PHyperlinkProvider implements HyperlinkProviderExt {
     }
 
     Tuple getTuple(final Document doc, final int offset) {
+        return getCachedTuple(doc, offset).tuple;
+    }
+
+    /**
+     * hover and click ask for the same offset several times, only the first call
+     * per document version goes through the parser.
+     */
+    private CachedTuple getCachedTuple(Document doc, int offset) {
+        TupleCache cache = TupleCache.get(doc);
+        CachedTuple cached = cache.get(offset);
+        if (cached == null) {
+            int version = cache.getVersion();
+            cached = new CachedTuple(offset, resolveTuple(doc, offset));
+            cache.put(version, cached);
+        }
+        return cached;
+    }
+
+    private Tuple resolveTuple(final Document doc, final int offset) {
         final String[] fValue = new String[1];
         final int[] fTokenOff = new int[1];
         final int[] fAssociatedType = new int[1];
@@ -109,7 +139,7 @@ public class PHyperlinkProvider implements HyperlinkProviderExt {
                 if (currentNode.isType(PElement.VARIABLE) || currentNode.isType(PElement.VARIABLE_DEFINITION)) {
                     fTokenOff[0] = currentNode.getOffset();
                     fValue[0] = currentNode.isType(PElement.VARIABLE) ? ((PVariable)currentNode).getName() : ((PVariableDefinition)currentNode).getName();
-                    if (!fValue[0].startsWith("$::")) {
+                    if (!fValue[0].startsWith("$::") && !isUndefinedFact(doc, rootNode, fValue[0])) {
                         fAssociatedType[0] = TYPE_VARIABLE;
                     }
                 } else if (currentNode.isType(PElement.IDENTIFIER)) {
@@ -144,7 +174,23 @@ public class PHyperlinkProvider implements HyperlinkProviderExt {
 
     }
 
-    private void performJump(Tuple tup, Document doc) {
+    /**
+     * facts are set by the agent, there is nothing to jump to unless the manifest or the inherited
+     * class shadows them (<code>class x inherits x::params</code>)
+     */
+    private boolean isUndefinedFact(Document doc, PElement rootNode, String name) {
+        if (!FactCatalog.getDefault().isFact(name)) {
+            return false;
+        }
+        String[] inherits = new String[1];
+        if (findVariableDefinition(rootNode, name, inherits) != -1) {
+            return false;
+        }
+        return inherits[0] == null
+                || findIndexedDeclaration(doc, inherits[0], "$" + inherits[0] + "::" + name.substring(1)) == null;
+    }
+
+    private void performJump(Tuple tup, Document doc, final CachedTuple cached) {
         String path = tup.value;
         if (path.startsWith("'")) {
             path = path.substring(1);
@@ -159,49 +205,52 @@ public class PHyperlinkProvider implements HyperlinkProviderExt {
         } else if (tup.associatedType == TYPE_VARIABLE) {
             //substring removes $
             Pair<String, String> pair = getPathAndVariable(path);
+            if (pair != null && pair.first() != null) {
+                String qualified = qualifiedVariable(path);
+                Pair<FileObject, Integer> decl = findIndexedDeclaration(doc, qualified.substring(1, qualified.lastIndexOf("::")), qualified);
+                if (decl != null && jumpToDeclaration(cached, decl)) {
+                    return;
+                }
+            }
             if (pair != null) {
                 path = pair.first();
-                Document targetDoc;
-                if (path == null) {
-                    targetDoc = doc;
-                } else {
-                    //TODO open document but not editor view only once found, open view
-                    targetDoc = openDocument(doc, path, false);
-                }
                 final String variableName = pair.second();
-                if (targetDoc != null) {
+                final String[] inherits = new String[1];
+                FileObject target = path != null ? findFile(doc, path) : null;
+                PElement cachedRoot = target != null ? getUnopenedRoot(target) : null;
+                if (cachedRoot != null) {
+                    // not open yet, only open once the definition is found
+                    int offset = findVariableDefinition(cachedRoot, variableName, inherits);
+                    if (offset != -1 && jumpToDeclaration(cached, Pair.of(target, offset))) {
+                        return;
+                    }
+                } else {
+                    Document targetDoc = path == null ? doc : openDocument(doc, path, false);
+                    if (targetDoc == null) {
+                        return;
+                    }
                     final BaseDocument bd = (BaseDocument)targetDoc;
-                    final boolean[] found = new boolean[1];
-                    final String[] inherits = new String[1];
                     PCompletionProvider.runWithParserResult(targetDoc, new PCompletionProvider.ParseResultRunnable() {
                             @Override
                             public void run(PElement rootNode) {
-                                for (PVariableDefinition def : rootNode.getChildrenOfType(PVariableDefinition.class, true)) {
-                                    if (variableName.equals(def.getName())) {
-                                        showAtOffset(bd, def.getOffset());
-                                        found[0] = true;
-                                        break; //first one only
-                                    }
-                                }
-                                if (!found[0]) {
-                                    //TODO open document but not editor view only once found, open view
-                                    List<PClass> clazz = rootNode.getChildrenOfType(PClass.class, false);
-                                    if (clazz.size() > 0) {
-                                        PClassRef ref = clazz.get(0).getInherits();
-                                        if (ref != null) {
-                                            inherits[0] = ref.getName();
-                                        }
-                                    }
+                                int offset = findVariableDefinition(rootNode, variableName, inherits);
+                                if (offset != -1) {
+                                    jump(cached, bd, offset);
                                 }
                             }
                     });
-                    if (!found[0] && inherits[0] != null) {
-                        Tuple newTup = new Tuple(inherits[0] + "::" + variableName, tup.associatedType, tup.tokenOffset);
-                        performJump(newTup, doc);
-                    }
+                }
+                if (inherits[0] != null) {
+                    Tuple newTup = new Tuple(inherits[0] + "::" + variableName, tup.associatedType, tup.tokenOffset);
+                    performJump(newTup, doc, cached);
                 }
             }
         } else if (tup.associatedType == TYPE_CLASS_REF) {
+            Pair<FileObject, Integer> decl = findIndexedDeclaration(doc, path, path);
+            if (decl != null && jumpToDeclaration(cached, decl)) {
+                return;
+            }
+            //index miss, guess the file from the name
             String[] splitValue = path.split("\\:\\:");
             if (splitValue.length > 0) {
                 String module = splitValue[0];
@@ -215,23 +264,26 @@ public class PHyperlinkProvider implements HyperlinkProviderExt {
                 } else {
                     file = "init.pp";
                 }
-                //TODO try the index first to find the right file without path translations?
-                //what if we have 2 checkouts of the same module but different versions or what not
-                Document targetDoc = openDocument(doc, module + "/manifests/" + file, true);
+                final String fPath = path;
+                String filePath = module + "/manifests/" + file;
+                FileObject target = findFile(doc, filePath);
+                PElement cachedRoot = target != null ? getUnopenedRoot(target) : null;
+                if (cachedRoot != null) {
+                    int offset = findClassName(cachedRoot, fPath);
+                    if (offset != -1) {
+                        jumpToDeclaration(cached, Pair.of(target, offset));
+                    }
+                    return;
+                }
+                Document targetDoc = openDocument(doc, filePath, true);
                 if (targetDoc != null) {
-                    final String fPath = path;
                     final BaseDocument bd = (BaseDocument)targetDoc;
                     PCompletionProvider.runWithParserResult(targetDoc, new PCompletionProvider.ParseResultRunnable() {
                             @Override
                             public void run(PElement rootNode) {
-                                for (PClass clz :rootNode.getChildrenOfType(PClass.class, true)) {
-                                    if (fPath.equals(clz.getName())) {
-                                        PIdentifier ident = clz.getChildrenOfType(PIdentifier.class, false).get(0);
-                                        // first direct identifier is the class name
-                                        System.out.println("identifier offset:" + ident.getOffset());
-                                        showAtOffset(bd, ident.getOffset());
-                                        break;
-                                    }
+                                int offset = findClassName(rootNode, fPath);
+                                if (offset != -1) {
+                                    jump(cached, bd, offset);
                                 }
                             }
                     });
@@ -240,6 +292,124 @@ public class PHyperlinkProvider implements HyperlinkProviderExt {
         }
     }
 
+    /**
+     * @param inherits receives the class inherited by the file's class when the variable is not defined in the file
+     * @return offset of the first definition of the variable, -1 if not defined
+     */
+    private static int findVariableDefinition(PElement rootNode, String variableName, String[] inherits) {
+        for (PVariableDefinition def : rootNode.getChildrenOfType(PVariableDefinition.class, true)) {
+            if (variableName.equals(def.getName())) {
+                return def.getOffset(); //first one only
+            }
+        }
+        List<PClass> clazz = rootNode.getChildrenOfType(PClass.class, false);
+        if (clazz.size() > 0) {
+            PClassRef ref = clazz.get(0).getInherits();
+            if (ref != null) {
+                inherits[0] = ref.getName();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return offset of the class name, -1 if the class is not declared in the file
+     */
+    private static int findClassName(PElement rootNode, String name) {
+        for (PClass clz : rootNode.getChildrenOfType(PClass.class, true)) {
+            if (name.equals(clz.getName())) {
+                return clz.getNameOffset();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * tree of a file without an open document, from the {@link PuppetAstCache}
+     * @return null if the document is loaded (the parser result is up to date then) or the file cannot be read
+     */
+    private static PElement getUnopenedRoot(FileObject file) {
+        CloneableEditorSupport ces = PPWhereUsedQueryPlugin.getEditorSupport(file);
+        if (ces == null || ces.isDocumentLoaded()) {
+            return null;
+        }
+        try {
+            return PuppetAstCache.getRoot(file);
+        } catch (IOException ex) {
+            Exceptions.printStackTrace(ex);
+            return null;
+        }
+    }
+
+    /**
+     * @param path variable as written in the manifest, eg. $foo::bar::var or ${foo::bar::var}
+     * @return $foo::bar::var
+     */
+    static String qualifiedVariable(String path) {
+        String name = path.replace("$", "").replace("{", "").replace("}", "");
+        if (name.endsWith(":")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return "$" + name;
+    }
+
+    /**
+     * looks up the declaration in the index, a declaration in the project of the current file wins
+     * when the name is declared in several places (eg. two checkouts of a module).
+     * @param rootName class or define declaring the name
+     * @param name qualified name, see {@link PPIndexer#FLD_DECL}
+     * @return declaring file and offset of the name, null on index miss
+     */
+    private Pair<FileObject, Integer> findIndexedDeclaration(Document doc, String rootName, String name) {
+        FileObject current = NbEditorUtilities.getFileObject(doc);
+        if (current == null) {
+            return null;
+        }
+        Project owner = FileOwnerQuery.getOwner(current);
+        Pair<FileObject, Integer> toRet = null;
+        try {
+            QuerySupport qs = PPIndexerFactory.getQuerySupportFor(doc, true);
+            for (IndexResult r : qs.query(PPIndexer.FLD_ROOT, rootName, QuerySupport.Kind.EXACT, PPIndexer.FLD_DECL)) {
+                int offset = PPIndexer.findDeclaration(r.getValues(PPIndexer.FLD_DECL), name);
+                FileObject file = r.getFile();
+                if (offset == -1 || file == null) {
+                    continue;
+                }
+                if (owner != null && owner.equals(FileOwnerQuery.getOwner(file))) {
+                    return Pair.of(file, offset);
+                }
+                if (toRet == null) {
+                    toRet = Pair.of(file, offset);
+                }
+            }
+        } catch (IOException ex) {
+            Exceptions.printStackTrace(ex);
+        }
+        return toRet;
+    }
+
+    private boolean jumpToDeclaration(CachedTuple cached, Pair<FileObject, Integer> decl) {
+        CloneableEditorSupport ces = PPWhereUsedQueryPlugin.getEditorSupport(decl.first());
+        if (ces == null) {
+            return false;
+        }
+        try {
+            Document targetDoc = ces.openDocument();
+            if (targetDoc instanceof BaseDocument && decl.second() <= targetDoc.getLength()) {
+                jump(cached, (BaseDocument) targetDoc, decl.second());
+                return true;
+            }
+        } catch (IOException ex) {
+            Exceptions.printStackTrace(ex);
+        }
+        return false;
+    }
+
+    private static void jump(CachedTuple cached, BaseDocument bd, int offset) {
+        cached.setTarget(bd, offset);
+        showAtOffset(bd, offset);
+    }
+
     public static void showAtOffset(BaseDocument bd, int offset) throws IndexOutOfBoundsException {
         try {
             int line = Utilities.getLineOffset(bd, offset);
@@ -293,6 +463,11 @@ public class PHyperlinkProvider implements HyperlinkProviderExt {
         return opened;
     }
 
+    private FileObject findFile(Document currentDoc, String path) {
+        FileObject fo = NbEditorUtilities.getFileObject(currentDoc);
+        return fo != null ? findFile(fo, path) : null;
+    }
+
     private FileObject findFile(FileObject fo, String path) {
         Project prj = FileOwnerQuery.getOwner(fo);
         if (prj == null) {
@@ -374,7 +549,7 @@ public class PHyperlinkProvider implements HyperlinkProviderExt {
         return Pair.of(null, "$" + path);
     }
     
-    private final class Tuple {
+    private static final class Tuple {
         final String value;
         final int tokenOffset;
         final int associatedType;
@@ -386,4 +561,124 @@ public class PHyperlinkProvider implements HyperlinkProviderExt {
             this.tokenOffset = offset;
         }
     }
+
+    /**
+     * hyperlink resolved at an offset, with the jump target once the link was followed.
+     */
+    private static final class CachedTuple {
+        final int offset;
+        final Tuple tuple;
+        private BaseDocument targetDoc;
+        private int targetVersion;
+        private int targetOffset;
+
+        CachedTuple(int offset, Tuple tuple) {
+            this.offset = offset;
+            this.tuple = tuple;
+        }
+
+        boolean contains(int off) {
+            return tuple != null && off >= tuple.tokenOffset && off <= tuple.tokenOffset + tuple.value.length();
+        }
+
+        synchronized void setTarget(BaseDocument doc, int offset) {
+            this.targetDoc = doc;
+            this.targetVersion = TupleCache.get(doc).getVersion();
+            this.targetOffset = offset;
+        }
+
+        /**
+         * @return false if there is no target yet or the target document changed since
+         */
+        boolean jumpToTarget() {
+            BaseDocument doc;
+            int off;
+            synchronized (this) {
+                if (targetDoc == null || TupleCache.get(targetDoc).getVersion() != targetVersion) {
+                    return false;
+                }
+                doc = targetDoc;
+                off = targetOffset;
+            }
+            showAtOffset(doc, off);
+            return true;
+        }
+    }
+
+    /**
+     * resolved hyperlinks of a document, dropped on every modification of the document.
+     */
+    private static final class TupleCache implements DocumentListener {
+        private static final Object KEY = new Object();
+        private static final int MAX_ENTRIES = 1000;
+
+        private int version;
+        private final Map<Integer, CachedTuple> byOffset = new HashMap<>();
+        private final List<CachedTuple> links = new ArrayList<>();
+
+        static TupleCache get(Document doc) {
+            synchronized (KEY) {
+                TupleCache cache = (TupleCache) doc.getProperty(KEY);
+                if (cache == null) {
+                    cache = new TupleCache();
+                    doc.putProperty(KEY, cache);
+                    doc.addDocumentListener(cache);
+                }
+                return cache;
+            }
+        }
+
+        synchronized int getVersion() {
+            return version;
+        }
+
+        synchronized CachedTuple get(int offset) {
+            CachedTuple cached = byOffset.get(offset);
+            if (cached == null) {
+                for (CachedTuple link : links) {
+                    if (link.contains(offset)) {
+                        return link;
+                    }
+                }
+            }
+            return cached;
+        }
+
+        /**
+         * @param resolvedVersion document version the tuple was resolved for, stale ones are ignored
+         */
+        synchronized void put(int resolvedVersion, CachedTuple cached) {
+            if (resolvedVersion != version) {
+                return;
+            }
+            if (byOffset.size() >= MAX_ENTRIES) {
+                byOffset.clear();
+                links.clear();
+            }
+            byOffset.put(cached.offset, cached);
+            if (cached.tuple != null) {
+                links.add(cached);
+            }
+        }
+
+        private synchronized void invalidate() {
+            version++;
+            byOffset.clear();
+            links.clear();
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            invalidate();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            invalidate();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+    }
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.indexer;
+
+import com.tropyx.nb_puppet.parser.PElement;
+import com.tropyx.nb_puppet.parser.PuppetParserEngine;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.netbeans.modules.parsing.spi.indexing.Context;
+import org.netbeans.modules.parsing.spi.indexing.Indexable;
+import org.netbeans.modules.parsing.spi.indexing.support.IndexDocument;
+import org.netbeans.modules.parsing.spi.indexing.support.IndexingSupport;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.URLMapper;
+
+/**
+ * Indexes a batch of manifests handed over by the indexing infrastructure.
+ * Files are read, lexed, parsed and their fields extracted in parallel on a fork-join pool,
+ * the documents are then written to {@link IndexingSupport} in batches from the calling thread
+ * (IndexingSupport is not thread safe).
+ * Progress is logged at FINE level, per phase timings at INFO when a root is done.
+ */
+final class PPBulkIndexer {
+
+    private static final Logger LOG = Logger.getLogger(PPBulkIndexer.class.getName());
+
+    /**
+     * number of files parsed before their documents are stored, bounds the memory held by parsed trees
+     */
+    static final int BATCH_SIZE = 256;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final IndexingSupport support;
+    private final Context context;
+
+    // cumulative across worker threads
+    private final AtomicLong readNanos = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    private final AtomicLong extractNanos = new AtomicLong();
+    // wall clock
+    private long parallelNanos;
+    private long storeNanos;
+
+    PPBulkIndexer(IndexingSupport support, Context context) {
+        this.support = support;
+        this.context = context;
+    }
+
+    void index(Iterable<? extends Indexable> files) {
+        long start = System.nanoTime();
+        List<Indexable> all = new ArrayList<>();
+        for (Indexable i : files) {
+            all.add(i);
+        }
+        int done = 0;
+        while (done < all.size() && !context.isCancelled()) {
+            int end = Math.min(all.size(), done + BATCH_SIZE);
+            FileEntry[] batch = new FileEntry[end - done];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = new FileEntry(all.get(done + i));
+            }
+            long parallelStart = System.nanoTime();
+            POOL.invoke(new ParseTask(batch, 0, batch.length));
+            parallelNanos += System.nanoTime() - parallelStart;
+            if (context.isCancelled()) {
+                break;
+            }
+            long storeStart = System.nanoTime();
+            store(batch);
+            storeNanos += System.nanoTime() - storeStart;
+            done = end;
+            LOG.log(Level.FINE, "Indexed {0}/{1} manifests in {2}", new Object[] {done, all.size(), context.getRootURI()});
+        }
+        if (!all.isEmpty()) {
+            //saving a file reindexes just that one, only scans are worth reporting
+            LOG.log(all.size() > BATCH_SIZE ? Level.INFO : Level.FINE, "Indexed {0}/{1} manifests of {2} in {3} ms: parallel phase {4} ms (read {5} ms, lex+parse {6} ms, extract {7} ms summed over {8} threads), store {9} ms",
+                    new Object[] {
+                        done, all.size(), context.getRootURI(), millis(System.nanoTime() - start),
+                        millis(parallelNanos), millis(readNanos.get()), millis(parseNanos.get()), millis(extractNanos.get()), POOL.getParallelism(),
+                        millis(storeNanos)
+                    });
+        }
+    }
+
+    private void store(FileEntry[] batch) {
+        PPNameIndex names = PPNameIndex.get(context.getRootURI());
+        for (FileEntry entry : batch) {
+            // we need to remove old documents (document per object, not file)
+            support.removeDocuments(entry.indexable);
+            if (entry.fields == null) {
+                if (names != null) {
+                    names.update(entry.indexable.getRelativePath(), null);
+                }
+                continue;
+            }
+            IndexDocument document = support.createDocument(entry.indexable);
+            entry.fields.addTo(document);
+            support.addDocument(document);
+            if (names != null) {
+                PPNameIndex.FileNames fileNames = new PPNameIndex.FileNames();
+                entry.fields.addTo(fileNames);
+                names.update(entry.indexable.getRelativePath(), fileNames);
+            }
+        }
+    }
+
+    private void process(FileEntry entry) {
+        long time = System.nanoTime();
+        String text;
+        try {
+            FileObject fo = URLMapper.findFileObject(entry.indexable.getURL());
+            if (fo == null) {
+                return;
+            }
+            text = fo.asText();
+        } catch (IOException ex) {
+            LOG.log(Level.INFO, "Cannot read " + entry.indexable.getRelativePath(), ex);
+            return;
+        } finally {
+            readNanos.addAndGet(System.nanoTime() - time);
+        }
+        time = System.nanoTime();
+        try {
+            PElement root = PuppetParserEngine.parse(text);
+            long parsed = System.nanoTime();
+            parseNanos.addAndGet(parsed - time);
+            CollectedFields fields = new CollectedFields();
+            PPIndexer.index(root, fields);
+            entry.fields = fields;
+            extractNanos.addAndGet(System.nanoTime() - parsed);
+        } catch (RuntimeException ex) {
+            //the parser is not robust against all malformed manifests, one file must not abort the whole root
+            LOG.log(Level.INFO, "Cannot index " + entry.indexable.getRelativePath(), ex);
+        }
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static final class FileEntry {
+        final Indexable indexable;
+        /**
+         * null when the file could not be read or parsed
+         */
+        CollectedFields fields;
+
+        FileEntry(Indexable indexable) {
+            this.indexable = indexable;
+        }
+    }
+
+    /**
+     * splits the batch until single files remain, those get processed in the worker threads.
+     */
+    private final class ParseTask extends RecursiveAction {
+        private final FileEntry[] entries;
+        private final int from;
+        private final int to;
+
+        ParseTask(FileEntry[] entries, int from, int to) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (context.isCancelled()) {
+                return;
+            }
+            if (to - from == 1) {
+                process(entries[from]);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ParseTask(entries, from, mid), new ParseTask(entries, mid, to));
+        }
+    }
+
+    /**
+     * fields of one file kept until they can be written to the IndexDocument on the indexing thread.
+     */
+    private static final class CollectedFields implements PPIndexer.Fields {
+        private final List<String> keys = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+        private final List<Boolean> searchable = new ArrayList<>();
+        private final List<Boolean> stored = new ArrayList<>();
+
+        @Override
+        public void addPair(String key, String value, boolean searchable, boolean stored) {
+            keys.add(key);
+            values.add(value);
+            this.searchable.add(searchable);
+            this.stored.add(stored);
+        }
+
+        void addTo(IndexDocument document) {
+            for (int i = 0; i < keys.size(); i++) {
+                document.addPair(keys.get(i), values.get(i), searchable.get(i), stored.get(i));
+            }
+        }
+
+        void addTo(PPIndexer.Fields fields) {
+            for (int i = 0; i < keys.size(); i++) {
+                fields.addPair(keys.get(i), values.get(i), searchable.get(i), stored.get(i));
+            }
+        }
+    }
+}
@@ -20,31 +20,41 @@ package com.tropyx.nb_puppet.indexer;
 import com.tropyx.nb_puppet.parser.PClass;
 import com.tropyx.nb_puppet.parser.PClassParam;
 import com.tropyx.nb_puppet.parser.PClassRef;
+import com.tropyx.nb_puppet.parser.PCollector;
 import com.tropyx.nb_puppet.parser.PDefine;
 import com.tropyx.nb_puppet.parser.PElement;
+import com.tropyx.nb_puppet.parser.PElementVisitor;
 import com.tropyx.nb_puppet.parser.PFunction;
+import com.tropyx.nb_puppet.parser.PIdentifier;
 import com.tropyx.nb_puppet.parser.PParamContainer;
 import com.tropyx.nb_puppet.parser.PResource;
 import com.tropyx.nb_puppet.parser.PVariable;
 import com.tropyx.nb_puppet.parser.PVariableDefinition;
-import com.tropyx.nb_puppet.parser.PuppetParserResult;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.netbeans.modules.parsing.spi.Parser;
 import org.netbeans.modules.parsing.spi.indexing.Context;
-import org.netbeans.modules.parsing.spi.indexing.EmbeddingIndexer;
+import org.netbeans.modules.parsing.spi.indexing.CustomIndexer;
 import org.netbeans.modules.parsing.spi.indexing.Indexable;
 import org.netbeans.modules.parsing.spi.indexing.support.IndexDocument;
 import org.netbeans.modules.parsing.spi.indexing.support.IndexingSupport;
 
-public class PPIndexer extends EmbeddingIndexer {
+public class PPIndexer extends CustomIndexer {
     public static final String FLD_VARREF = "varref";
     public static final String FLD_VAR = "var";
+    /**
+     * variables defined in a class or define qualified by its name, eg. <code>apache::params::port</code>,
+     * stored searchable
+     */
+    public static final String FLD_QVAR = "qvar";
     public static final String FLD_PARAM = "param";
     public static final String FLD_REQ_PARAM = "reqparam"; //define, class parameter without default value
     public static final String FLD_INHERIT = "inherit";
@@ -54,6 +64,11 @@ public class PPIndexer extends EmbeddingIndexer {
      * root class or define name, stored searcheable
      */
     public static final String FLD_ROOT = "root";
+    /**
+     * FLD_ROOT of statements outside of class, define and node (eg. site.pp),
+     * their variables are top scope, <code>$::name</code>
+     */
+    public static final String TOP_SCOPE_ROOT = "";
     /**
      * class name if file is class, searchable only -> stored is FLD_ROOT
      */
@@ -63,15 +78,24 @@ public class PPIndexer extends EmbeddingIndexer {
      */
     public static final String FLD_DEFINE = "define";
     public static final String FLD_RESOURCE = "resource";
+    /**
+     * declarations in the file with the offset of their name, stored only.
+     * Value is the qualified name, '@' and the offset, variables are prefixed with $ and
+     * qualified by their class or define, eg. <code>foo::bar@6</code> or <code>$foo::bar::var@120</code>,
+     * variables in node definitions are not qualified.
+     * see {@link #findDeclaration(java.lang.String[], java.lang.String) }
+     */
+    public static final String FLD_DECL = "decl";
+    /**
+     * positions of variable, function and class name occurrences in the element, stored only.
+     * One value per name, see {@link PPOccurrences}.
+     */
+    public static final String FLD_OCCURRENCES = "occ";
     
     private static final Logger LOG = Logger.getLogger(PPIndexer.class.getName());
 
     @Override
-    protected void index(Indexable indexable, Parser.Result parserResult, Context context) {
-        if (!(parserResult instanceof PuppetParserResult)) {
-            return;
-        }
-
+    protected void index(Iterable<? extends Indexable> files, Context context) {
         IndexingSupport support;
         try {
             support = IndexingSupport.getInstance(context);
@@ -79,18 +103,23 @@ public class PPIndexer extends EmbeddingIndexer {
             LOG.log(Level.WARNING, null, ioe);
             return;
         }
-        // we need to remove old documents (document per object, not file)
-        support.removeDocuments(indexable);
+        new PPBulkIndexer(support, context).index(files);
+    }
 
-        IndexDocument document = support.createDocument(indexable);
-        PuppetParserResult res = (PuppetParserResult) parserResult;
-        PElement root = res.getRootNode();
+    /**
+     * extracts all the FLD_* fields of a single file.
+     * @param root root node of the file's parse result
+     * @param document receives the fields
+     */
+    public static void index(PElement root, Fields document) {
+        boolean topScope = false;
         for (PElement ch : root.getChildren()) {
             if (ch.getType() == PElement.CLASS) {
                 PClass cl = (PClass)ch;
                 String name = cl.getName();
                 document.addPair(FLD_ROOT, name, true, true);
                 document.addPair(FLD_CLASS, name, true, false);
+                document.addPair(FLD_DECL, declaration(name, cl.getNameOffset()), false, true);
                 if (cl.getInherits() != null) {
                     document.addPair(FLD_CLASSREF, cl.getInherits().getName(), true, false);
                     document.addPair(FLD_INHERIT, cl.getInherits().getName(), true, true);
@@ -101,6 +130,7 @@ public class PPIndexer extends EmbeddingIndexer {
                 String name = def.getName();
                 document.addPair(FLD_ROOT, name, true, true);
                 document.addPair(FLD_DEFINE, name, true, false);
+                document.addPair(FLD_DECL, declaration(name, def.getNameOffset()), false, true);
             }
             if (ch instanceof PParamContainer) {
                 PParamContainer cl = (PParamContainer)ch;
@@ -111,49 +141,178 @@ public class PPIndexer extends EmbeddingIndexer {
                     }
                 }
             }
-            List<PClassRef> refs = ch.getChildrenOfType(PClassRef.class, true);
-            for (PClassRef ref : refs) {
-                document.addPair(FLD_CLASSREF, ref.getName(), true, false);
+            FieldCollector collector = new FieldCollector();
+            for (PElement grandChild : ch.getChildren()) {
+                grandChild.walk(collector);
             }
-            List<String> addedVars = new ArrayList<>();
-            List<PVariableDefinition> varDefs = ch.getChildrenOfType(PVariableDefinition.class, true);
-            for (PVariableDefinition vd : varDefs) {
-                if (!addedVars.contains(vd.getName())) {
-                    document.addPair(FLD_VAR, stripDollar(vd.getName()), true, true);
-                    document.addPair(FLD_VARREF, stripDollar(vd.getName()), true, false);
-                    addedVars.add(vd.getName());
-                }
+            for (String ref : collector.classRefs) {
+                document.addPair(FLD_CLASSREF, ref, true, false);
             }
-            List<PVariable> vars = ch.getChildrenOfType(PVariable.class, true);
-            for (PVariable v : vars) {
-                if (!addedVars.contains(v.getName())) {
-                    document.addPair(FLD_VARREF, stripDollar(v.getName()), true, false);
-                    addedVars.add(v.getName());
+            String rootName = ch.getType() == PElement.CLASS ? ((PClass)ch).getName()
+                    : ch.getType() == PElement.DEFINE ? ((PDefine)ch).getName()
+                    : ch.getType() == PElement.BLOB ? TOP_SCOPE_ROOT : null;
+            topScope |= ch.getType() == PElement.BLOB;
+            for (Map.Entry<String, Integer> var : collector.varDefs.entrySet()) {
+                String name = stripDollar(var.getKey());
+                document.addPair(FLD_VAR, name, true, true);
+                document.addPair(FLD_VARREF, name, true, false);
+                if (rootName != null) {
+                    document.addPair(FLD_QVAR, rootName + "::" + name, true, true);
                 }
+                //node variables are not addressable by qualified name
+                String qualified = rootName != null ? "$" + rootName + "::" + name : "$" + name;
+                document.addPair(FLD_DECL, declaration(qualified, var.getValue()), false, true);
             }
-            List<PResource> resources = ch.getChildrenOfType(PResource.class, true);
-            Set<String> resNames = new HashSet<>();
-
-            for (PResource r : resources) {
-                resNames.add(r.getResourceType());
+            for (String var : collector.vars) {
+                if (!collector.varDefs.containsKey(var)) {
+                    document.addPair(FLD_VARREF, stripDollar(var), true, false);
+                }
             }
-            for (String r : resNames) {
+            for (String r : collector.resources) {
                 document.addPair(FLD_RESOURCE, r, true, false);
             }
-            Set<String> fNames = new HashSet<>();
-            List<PFunction> funcs = ch.getChildrenOfType(PFunction.class, true);
-            for (PFunction r : funcs) {
-                fNames.add(r.getName());
-            }
-            for (String f : fNames) {
+            for (String f : collector.functions) {
                 document.addPair(FLD_FUNCTION, f, true, false);
             }
+            for (Map.Entry<String, Positions> occ : collector.occurrences.entrySet()) {
+                Positions positions = occ.getValue();
+                document.addPair(FLD_OCCURRENCES, PPOccurrences.encode(occ.getKey(), positions.data, positions.size), false, true);
+            }
+        }
+        if (topScope) {
+            // after the class or define name, that one is the stored value consumers read
+            document.addPair(FLD_ROOT, TOP_SCOPE_ROOT, true, true);
         }
-        support.addDocument(document);
     }
 
-    private String stripDollar(String s) {
+    static String declaration(String name, int offset) {
+        return name + "@" + offset;
+    }
+
+    /**
+     * @param values stored values of {@link #FLD_DECL}
+     * @param name qualified name of class, define or variable (with leading $)
+     * @return offset of the declared name or -1 if not declared
+     */
+    public static int findDeclaration(String[] values, String name) {
+        if (values == null) {
+            return -1;
+        }
+        for (String value : values) {
+            int at = value.lastIndexOf('@');
+            if (at == name.length() && value.startsWith(name)) {
+                try {
+                    return Integer.parseInt(value.substring(at + 1));
+                } catch (NumberFormatException ex) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String stripDollar(String s) {
         return s.startsWith("$") ? s.substring(1) : s;
     }
 
+    /**
+     * gathers everything indexed from the subtree of a top level element in a single walk,
+     * linked sets keep the document order the fields were added in before.
+     */
+    private static final class FieldCollector implements PElementVisitor {
+        final List<String> classRefs = new ArrayList<>();
+        /**
+         * name to offset of first definition
+         */
+        final Map<String, Integer> varDefs = new LinkedHashMap<>();
+        final Set<String> vars = new LinkedHashSet<>();
+        final Set<String> resources = new HashSet<>();
+        final Set<String> functions = new HashSet<>();
+        /**
+         * PPOccurrences key to positions, in document order
+         */
+        final Map<String, Positions> occurrences = new LinkedHashMap<>();
+
+        @Override
+        public boolean visit(PElement element) {
+            switch (element.getType()) {
+                case PElement.CLASS_REF:
+                    classRefs.add(((PClassRef) element).getName());
+                    break;
+                case PElement.VARIABLE_DEFINITION:
+                    PVariableDefinition def = (PVariableDefinition) element;
+                    //lambda parameters and variables are not visible outside of the lambda
+                    if (!varDefs.containsKey(def.getName()) && !inLambda(def)) {
+                        varDefs.put(def.getName(), def.getOffset());
+                    }
+                    occurrence(PPOccurrences.VARIABLE, stripDollar(def.getName()), def.getOffset(), def.getName().length());
+                    break;
+                case PElement.VARIABLE:
+                    String var = ((PVariable) element).getName();
+                    vars.add(var);
+                    occurrence(PPOccurrences.VARIABLE, stripDollar(var), element.getOffset(), var.length());
+                    break;
+                case PElement.RESOURCE:
+                    resources.add(((PResource) element).getResourceType());
+                    break;
+                case PElement.COLLECTOR:
+                    resources.add(((PCollector) element).getResource());
+                    break;
+                case PElement.FUNCTION:
+                    String function = ((PFunction) element).getName();
+                    functions.add(function);
+                    occurrence(PPOccurrences.FUNCTION, function, element.getOffset(), function.length());
+                    break;
+                case PElement.IDENTIFIER:
+                    PElement parent = element.getParent();
+                    if (parent.isType(PElement.CLASS) || parent.isType(PElement.CLASS_REF)) {
+                        String name = ((PIdentifier) element).getName();
+                        occurrence(PPOccurrences.CLASS, name, element.getOffset(), name.length());
+                    }
+                    break;
+                default:
+            }
+            return true;
+        }
+
+        private static boolean inLambda(PElement element) {
+            for (PElement p = element.getParent(); p != null; p = p.getParent()) {
+                if (p.isType(PElement.LAMBDA)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void occurrence(char kind, String name, int offset, int length) {
+            String key = PPOccurrences.key(kind, name);
+            Positions positions = occurrences.get(key);
+            if (positions == null) {
+                positions = new Positions();
+                occurrences.put(key, positions);
+            }
+            positions.add(offset, length);
+        }
+    }
+
+    private static final class Positions {
+        int[] data = new int[4];
+        int size;
+
+        void add(int offset, int length) {
+            if (size + 2 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = offset;
+            data[size++] = length;
+        }
+    }
+
+    /**
+     * target of the extracted fields, same contract as {@link IndexDocument#addPair(java.lang.String, java.lang.String, boolean, boolean)}
+     */
+    public interface Fields {
+        void addPair(String key, String value, boolean searchable, boolean stored);
+    }
+
 }
@@ -18,6 +18,7 @@
 package com.tropyx.nb_puppet.indexer;
 
 import java.io.IOException;
+import java.net.URL;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -27,18 +28,27 @@ import javax.swing.text.Document;
 import org.netbeans.api.java.classpath.ClassPath;
 import org.netbeans.api.java.classpath.GlobalPathRegistry;
 import org.netbeans.modules.editor.NbEditorUtilities;
-import org.netbeans.modules.parsing.api.Snapshot;
 import org.netbeans.modules.parsing.spi.indexing.Context;
-import org.netbeans.modules.parsing.spi.indexing.EmbeddingIndexer;
-import org.netbeans.modules.parsing.spi.indexing.EmbeddingIndexerFactory;
+import org.netbeans.modules.parsing.spi.indexing.CustomIndexer;
+import org.netbeans.modules.parsing.spi.indexing.CustomIndexerFactory;
 import org.netbeans.modules.parsing.spi.indexing.Indexable;
 import org.netbeans.modules.parsing.spi.indexing.support.IndexingSupport;
 import org.netbeans.modules.parsing.spi.indexing.support.QuerySupport;
 import org.openide.filesystems.FileObject;
 
-public class PPIndexerFactory extends EmbeddingIndexerFactory {
+public class PPIndexerFactory extends CustomIndexerFactory {
     public static final String INDEXER_TYPE = "puppet";
-    public static final int INDEXER_VERSION = 2;
+    /**
+     * bump whenever the indexed fields change, the infrastructure keeps indexes per
+     * name and version so existing caches are dropped and all roots rescanned.
+     * 3 - declaration offsets (PPIndexer.FLD_DECL)
+     * 4 - occurrence positions (PPIndexer.FLD_OCCURRENCES)
+     * 5 - qualified variables (PPIndexer.FLD_QVAR)
+     * 6 - variables in heredocs and $name in strings
+     * 7 - top level statements under PPIndexer.TOP_SCOPE_ROOT
+     * 8 - lambda scoped variables, collected resources
+     */
+    public static final int INDEXER_VERSION = 8;
 
     private static final Logger LOG = Logger.getLogger(PPIndexerFactory.class.getName());
 
@@ -60,8 +70,12 @@ public class PPIndexerFactory extends EmbeddingIndexerFactory {
     public void filesDeleted(Iterable<? extends Indexable> deleted, Context context) {
         try {
             IndexingSupport is = IndexingSupport.getInstance(context);
+            PPNameIndex names = PPNameIndex.get(context.getRootURI());
             for (Indexable i : deleted) {
                 is.removeDocuments(i);
+                if (names != null) {
+                    names.update(i.getRelativePath(), null);
+                }
             }
         } catch (IOException ioe) {
             LOG.log(Level.WARNING, null, ioe);
@@ -80,6 +94,13 @@ public class PPIndexerFactory extends EmbeddingIndexerFactory {
         }
     }
 
+    @Override
+    public void rootsRemoved(Iterable<? extends URL> removedRoots) {
+        for (URL root : removedRoots) {
+            PPNameIndex.rootRemoved(root);
+        }
+    }
+
     @Override
     public String getIndexerName() {
         return INDEXER_TYPE;
@@ -91,24 +112,33 @@ public class PPIndexerFactory extends EmbeddingIndexerFactory {
     }
 
     @Override
-    public EmbeddingIndexer createIndexer(Indexable indexable, Snapshot snapshot) {
+    public CustomIndexer createIndexer() {
         return new PPIndexer();
     }
+
+    @Override
+    public boolean supportsEmbeddedIndexers() {
+        return false;
+    }
     
     public static QuerySupport getQuerySupportFor(final Document document, boolean allOpenProjects) throws IOException {
-        FileObject fo = NbEditorUtilities.getFileObject(document);
-        Collection<FileObject> roots;
+        Collection<FileObject> roots = getRootsFor(document, allOpenProjects);
+        return QuerySupport.forRoots(PPIndexerFactory.INDEXER_TYPE, PPIndexerFactory.INDEXER_VERSION, roots.toArray(new FileObject[0]));
+    }
+
+    /**
+     * @return source roots queried for the document
+     */
+    public static Collection<FileObject> getRootsFor(final Document document, boolean allOpenProjects) {
         if (allOpenProjects) {
-            roots = GlobalPathRegistry.getDefault().getSourceRoots();
-        } else {
-            ClassPath cp = ClassPath.getClassPath(fo, ClassPath.SOURCE);
-            if (cp != null) {
-                roots = Arrays.asList(cp.getRoots());
-            } else {
-                roots = Collections.emptyList();
-            }
+            return GlobalPathRegistry.getDefault().getSourceRoots();
         }
-        return QuerySupport.forRoots(PPIndexerFactory.INDEXER_TYPE, PPIndexerFactory.INDEXER_VERSION, roots.toArray(new FileObject[0]));
+        FileObject fo = NbEditorUtilities.getFileObject(document);
+        ClassPath cp = fo != null ? ClassPath.getClassPath(fo, ClassPath.SOURCE) : null;
+        if (cp != null) {
+            return Arrays.asList(cp.getRoots());
+        }
+        return Collections.<FileObject>emptyList();
     }
 
 
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.indexer;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.netbeans.modules.parsing.spi.indexing.support.IndexResult;
+import org.netbeans.modules.parsing.spi.indexing.support.QuerySupport;
+import org.openide.filesystems.FileObject;
+
+/**
+ * In memory names of classes, defines and qualified variables of one source root, for completion.
+ * Loaded from the index on first use and then kept up to date by the indexer as files change,
+ * a lookup is a walk of a {@link PPNameTrie} instead of a Lucene query.
+ */
+public final class PPNameIndex {
+
+    private static final Logger LOG = Logger.getLogger(PPNameIndex.class.getName());
+
+    private static final ConcurrentMap<URL, PPNameIndex> ROOTS = new ConcurrentHashMap<>();
+
+    private final PPNameTrie classes = new PPNameTrie();
+    private final PPNameTrie defines = new PPNameTrie();
+    /**
+     * qualified name under both the qualified and the simple name
+     */
+    private final PPNameTrie variables = new PPNameTrie();
+    /**
+     * relative path to the names the file contributed
+     */
+    private final Map<String, FileNames> files = new HashMap<>();
+
+    /**
+     * relative paths the indexer updated while the names were loaded, their loaded names are stale,
+     * null once loaded
+     */
+    private Set<String> updatedWhileLoading = new HashSet<>();
+    private boolean loadFailed;
+
+    private PPNameIndex() {
+    }
+
+    /**
+     * @return names of the root, loaded from the index if not in memory yet, null if the index cannot be read
+     */
+    public static PPNameIndex forRoot(FileObject root) {
+        URL url = root.toURL();
+        PPNameIndex index = ROOTS.get(url);
+        if (index == null) {
+            // registered before loading so that the indexer updates it meanwhile
+            PPNameIndex created = new PPNameIndex();
+            index = ROOTS.putIfAbsent(url, created);
+            if (index == null) {
+                index = created;
+                try {
+                    created.load(root);
+                } catch (IOException ex) {
+                    LOG.log(Level.INFO, "Cannot load names of " + root, ex);
+                    ROOTS.remove(url, created);
+                    created.loaded(true);
+                    return null;
+                }
+            }
+        }
+        return index.awaitLoaded() ? index : null;
+    }
+
+    /**
+     * @return names of the root if loaded or being loaded, the indexer only updates these roots, the others
+     * read the index once it is needed
+     */
+    static PPNameIndex get(URL root) {
+        return ROOTS.get(root);
+    }
+
+    static void rootRemoved(URL root) {
+        ROOTS.remove(root);
+    }
+
+    private void load(FileObject root) throws IOException {
+        long start = System.nanoTime();
+        QuerySupport qs = QuerySupport.forRoots(PPIndexerFactory.INDEXER_TYPE, PPIndexerFactory.INDEXER_VERSION, root);
+        Map<String, FileNames> names = new HashMap<>();
+        for (IndexResult res : qs.query(PPIndexer.FLD_CLASS, "", QuerySupport.Kind.PREFIX, PPIndexer.FLD_ROOT, PPIndexer.FLD_QVAR)) {
+            addTo(names, res, PPIndexer.FLD_CLASS);
+        }
+        for (IndexResult res : qs.query(PPIndexer.FLD_DEFINE, "", QuerySupport.Kind.PREFIX, PPIndexer.FLD_ROOT, PPIndexer.FLD_QVAR)) {
+            addTo(names, res, PPIndexer.FLD_DEFINE);
+        }
+        for (IndexResult res : qs.query(PPIndexer.FLD_ROOT, PPIndexer.TOP_SCOPE_ROOT, QuerySupport.Kind.EXACT, PPIndexer.FLD_QVAR)) {
+            //files with class or define already have all their variables
+            if (!names.containsKey(res.getRelativePath())) {
+                addTo(names, res, PPIndexer.FLD_ROOT);
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<String, FileNames> e : names.entrySet()) {
+                //the indexer was faster, it has the current names of the file
+                if (!updatedWhileLoading.contains(e.getKey())) {
+                    update(e.getKey(), e.getValue());
+                }
+            }
+            loaded(false);
+        }
+        LOG.log(Level.FINE, "Loaded names of {0} files in {1} in {2} ms", new Object[] {names.size(), root, (System.nanoTime() - start) / 1000000});
+    }
+
+    private synchronized void loaded(boolean failed) {
+        updatedWhileLoading = null;
+        loadFailed = failed;
+        notifyAll();
+    }
+
+    /**
+     * @return false if loading failed in another thread or the wait was interrupted
+     */
+    private synchronized boolean awaitLoaded() {
+        while (updatedWhileLoading != null) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !loadFailed;
+    }
+
+    private static void addTo(Map<String, FileNames> names, IndexResult res, String field) {
+        FileNames file = names.get(res.getRelativePath());
+        if (file == null) {
+            file = new FileNames();
+            names.put(res.getRelativePath(), file);
+        }
+        String root = res.getValue(PPIndexer.FLD_ROOT);
+        if (root != null) {
+            file.addPair(field, root, true, false);
+        }
+        String[] vars = res.getValues(PPIndexer.FLD_QVAR);
+        if (vars != null) {
+            for (String var : vars) {
+                file.addPair(PPIndexer.FLD_QVAR, var, true, true);
+            }
+        }
+    }
+
+    /**
+     * replaces the names contributed by the file
+     * @param names null if the file has no names anymore
+     */
+    synchronized void update(String relativePath, FileNames names) {
+        if (updatedWhileLoading != null) {
+            updatedWhileLoading.add(relativePath);
+        }
+        FileNames old = names != null ? files.put(relativePath, names) : files.remove(relativePath);
+        if (old != null) {
+            for (String name : old.classes) {
+                classes.remove(name, name);
+            }
+            for (String name : old.defines) {
+                defines.remove(name, name);
+            }
+            for (String name : old.variables) {
+                variables.remove(name, name);
+                variables.remove(simpleName(name), name);
+            }
+        }
+        if (names != null) {
+            for (String name : names.classes) {
+                classes.add(name, name);
+            }
+            for (String name : names.defines) {
+                defines.add(name, name);
+            }
+            for (String name : names.variables) {
+                variables.add(name, name);
+                variables.add(simpleName(name), name);
+            }
+        }
+    }
+
+    private static String simpleName(String qualified) {
+        return qualified.substring(qualified.lastIndexOf("::") + 2);
+    }
+
+    /**
+     * @param pattern see {@link PPNameTrie#matches(java.lang.String, java.lang.String)}
+     */
+    public synchronized void findClasses(String pattern, Collection<String> result) {
+        classes.find(pattern, result);
+    }
+
+    public synchronized void findDefines(String pattern, Collection<String> result) {
+        defines.find(pattern, result);
+    }
+
+    /**
+     * A pattern with <code>::</code> names the class exactly, only the last segment is a prefix,
+     * <code>apache::params::po</code> does not offer <code>apache::params_ext::port</code>
+     * and <code>::po</code> only offers top scope variables.
+     * @param result receives qualified names of variables whose qualified or simple name matches
+     */
+    public synchronized void findVariables(String pattern, Collection<String> result) {
+        if (pattern.contains("::")) {
+            variables.findPrefix(pattern, result);
+        } else {
+            variables.find(pattern, result);
+        }
+    }
+
+    /**
+     * the names a single file contributes, filled from the fields of {@link PPIndexer#index(com.tropyx.nb_puppet.parser.PElement, com.tropyx.nb_puppet.indexer.PPIndexer.Fields) }
+     */
+    static final class FileNames implements PPIndexer.Fields {
+        final List<String> classes = new ArrayList<>(1);
+        final List<String> defines = new ArrayList<>(1);
+        final List<String> variables = new ArrayList<>();
+
+        @Override
+        public void addPair(String key, String value, boolean searchable, boolean stored) {
+            switch (key) {
+                case PPIndexer.FLD_CLASS:
+                    classes.add(value);
+                    break;
+                case PPIndexer.FLD_DEFINE:
+                    defines.add(value);
+                    break;
+                case PPIndexer.FLD_QVAR:
+                    variables.add(value);
+                    break;
+                default:
+            }
+        }
+    }
+}
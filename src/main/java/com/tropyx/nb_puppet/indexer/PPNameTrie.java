@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.indexer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Prefix tree from names to values, a value is added under one or more keys (eg. a qualified variable
+ * under <code>apache::params::port</code> and <code>port</code>) and reference counted,
+ * so the same name contributed by several files stays until the last one is removed.
+ * Lookups support plain prefixes, <code>::</code> segment prefixes (<code>ap::pa::po</code>) and
+ * camel case word starts (<code>maxSN</code> for <code>max_server_name</code>), see {@link #matches(java.lang.String, java.lang.String)}.
+ * Not thread safe.
+ */
+public final class PPNameTrie {
+
+    private final Node root = new Node();
+
+    public void add(String key, String value) {
+        Node node = root;
+        for (int i = 0; i < key.length(); i++) {
+            node = node.getOrCreate(key.charAt(i));
+        }
+        if (node.values == null) {
+            node.values = new HashMap<>(2);
+        }
+        Integer count = node.values.get(value);
+        node.values.put(value, count == null ? 1 : count + 1);
+    }
+
+    public void remove(String key, String value) {
+        remove(root, key, 0, value);
+    }
+
+    /**
+     * @return true if the node became empty and can be dropped by its parent
+     */
+    private static boolean remove(Node node, String key, int depth, String value) {
+        if (depth == key.length()) {
+            if (node.values != null) {
+                Integer count = node.values.get(value);
+                if (count != null && count > 1) {
+                    node.values.put(value, count - 1);
+                } else {
+                    node.values.remove(value);
+                    if (node.values.isEmpty()) {
+                        node.values = null;
+                    }
+                }
+            }
+        } else {
+            int index = node.indexOf(key.charAt(depth));
+            if (index < 0) {
+                return false;
+            }
+            if (remove(node.children[index], key, depth + 1, value)) {
+                node.removeChild(index);
+            }
+        }
+        return node.values == null && node.size == 0;
+    }
+
+    /**
+     * @param pattern prefix, segment or camel case pattern, empty matches everything
+     * @param result receives the values of all matching keys
+     */
+    public void find(String pattern, Collection<String> result) {
+        // all matching keys start with the leading lower case part of the pattern
+        int lead = 0;
+        while (lead < pattern.length() && !Character.isUpperCase(pattern.charAt(lead)) && !pattern.startsWith("::", lead)) {
+            lead++;
+        }
+        Node node = root;
+        for (int i = 0; i < lead && node != null; i++) {
+            int index = node.indexOf(pattern.charAt(i));
+            node = index < 0 ? null : node.children[index];
+        }
+        if (node != null) {
+            StringBuilder key = new StringBuilder(pattern.substring(0, lead));
+            collect(node, key, lead == pattern.length() ? null : pattern, result);
+        }
+    }
+
+    /**
+     * @param prefix plain prefix of the keys, no segment or camel case matching
+     * @param result receives the values of all keys starting with the prefix
+     */
+    public void findPrefix(String prefix, Collection<String> result) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            int index = node.indexOf(prefix.charAt(i));
+            if (index < 0) {
+                return;
+            }
+            node = node.children[index];
+        }
+        collect(node, new StringBuilder(prefix), null, result);
+    }
+
+    private static void collect(Node node, StringBuilder key, String pattern, Collection<String> result) {
+        if (node.values != null && (pattern == null || matches(key.toString(), pattern))) {
+            result.addAll(node.values.keySet());
+        }
+        for (int i = 0; i < node.size; i++) {
+            key.append(node.chars[i]);
+            collect(node.children[i], key, pattern, result);
+            key.setLength(key.length() - 1);
+        }
+    }
+
+    /**
+     * The pattern is split before upper case letters and at <code>::</code>. The first part has to be a prefix
+     * of the name, a part following <code>::</code> has to prefix one of the next segments of the name,
+     * an upper case part has to (case insensitively) prefix a later word of the name, words start
+     * after <code>_</code>, <code>:</code> or at an upper case letter.
+     */
+    static boolean matches(String name, String pattern) {
+        int pos = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            boolean segment = pattern.startsWith("::", i);
+            if (segment) {
+                i += 2;
+            }
+            int end = i + 1;
+            while (end < pattern.length() && !Character.isUpperCase(pattern.charAt(end)) && !pattern.startsWith("::", end)) {
+                end++;
+            }
+            end = Math.min(end, pattern.length());
+            int length = end - i;
+            if (i == 0) {
+                if (!name.startsWith(pattern.substring(0, end))) {
+                    return false;
+                }
+                pos = length;
+            } else if (segment) {
+                int start = name.indexOf("::", pos);
+                while (start != -1 && !name.regionMatches(start + 2, pattern, i, length)) {
+                    start = name.indexOf("::", start + 2);
+                }
+                if (start == -1) {
+                    return false;
+                }
+                pos = start + 2 + length;
+            } else {
+                int start = pos;
+                while (start < name.length() && !(isWordStart(name, start) && name.regionMatches(true, start, pattern, i, length))) {
+                    start++;
+                }
+                if (start >= name.length()) {
+                    return false;
+                }
+                pos = start + length;
+            }
+            i = end;
+        }
+        return true;
+    }
+
+    private static boolean isWordStart(String name, int index) {
+        if (index == 0) {
+            return true;
+        }
+        char prev = name.charAt(index - 1);
+        return prev == '_' || prev == ':' || Character.isUpperCase(name.charAt(index));
+    }
+
+    private static final class Node {
+        private static final char[] NO_CHARS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        char[] chars = NO_CHARS;
+        Node[] children = NO_CHILDREN;
+        int size;
+        /**
+         * value to reference count, null when no key ends here
+         */
+        Map<String, Integer> values;
+
+        int indexOf(char c) {
+            return Arrays.binarySearch(chars, 0, size, c);
+        }
+
+        Node getOrCreate(char c) {
+            int index = indexOf(c);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            if (size == chars.length) {
+                int capacity = Math.max(2, size * 2);
+                chars = Arrays.copyOf(chars, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            System.arraycopy(chars, index, chars, index + 1, size - index);
+            System.arraycopy(children, index, children, index + 1, size - index);
+            Node child = new Node();
+            chars[index] = c;
+            children[index] = child;
+            size++;
+            return child;
+        }
+
+        void removeChild(int index) {
+            System.arraycopy(chars, index + 1, chars, index, size - index - 1);
+            System.arraycopy(children, index + 1, children, index, size - index - 1);
+            size--;
+            children[size] = null;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.indexer;
+
+import java.util.Arrays;
+
+/**
+ * Encoding of the {@link PPIndexer#FLD_OCCURRENCES} values.
+ * A value is the key (kind character, ':' and the name), a space and the occurrences of the name
+ * as (offset delta, length) pairs. Numbers are varints of 5 bit groups, each group written
+ * as one character of {@link #DIGITS}, the sixth bit marks a following group.
+ * Eg. 3 occurrences of a variable take about 12 characters.
+ */
+public final class PPOccurrences {
+
+    public static final char VARIABLE = 'v';
+    public static final char FUNCTION = 'f';
+    public static final char CLASS = 'c';
+
+    private static final String DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        for (int i = 0; i < DIGITS.length(); i++) {
+            VALUES[DIGITS.charAt(i)] = i;
+        }
+    }
+
+    private PPOccurrences() {
+    }
+
+    /**
+     * @param kind one of {@link #VARIABLE} (name without $), {@link #FUNCTION}, {@link #CLASS}
+     */
+    public static String key(char kind, String name) {
+        return kind + ":" + name;
+    }
+
+    /**
+     * @param positions offset, length pairs in ascending offset order
+     * @param size number of used items in positions
+     */
+    static String encode(String key, int[] positions, int size) {
+        StringBuilder sb = new StringBuilder(key.length() + 1 + size * 2).append(key).append(' ');
+        int last = 0;
+        for (int i = 0; i < size; i += 2) {
+            writeVarint(sb, positions[i] - last);
+            writeVarint(sb, positions[i + 1]);
+            last = positions[i];
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param values stored values of {@link PPIndexer#FLD_OCCURRENCES}, possibly of several documents of a file
+     * @return offset, length pairs of the key's occurrences, empty array if there are none, null if a value is malformed
+     */
+    public static int[] find(String[] values, String key) {
+        if (values == null) {
+            return new int[0];
+        }
+        int[] toRet = new int[0];
+        for (String value : values) {
+            if (value.length() > key.length() && value.charAt(key.length()) == ' ' && value.startsWith(key)) {
+                int[] decoded = decode(value, key.length() + 1);
+                if (decoded == null) {
+                    return null;
+                }
+                int[] merged = Arrays.copyOf(toRet, toRet.length + decoded.length);
+                System.arraycopy(decoded, 0, merged, toRet.length, decoded.length);
+                toRet = merged;
+            }
+        }
+        return toRet;
+    }
+
+    private static int[] decode(String value, int start) {
+        int[] toRet = new int[8];
+        int size = 0;
+        int last = 0;
+        int pos = start;
+        int[] read = new int[1];
+        while (pos < value.length()) {
+            pos = readVarint(value, pos, read);
+            if (pos == -1) {
+                return null;
+            }
+            int offset = last + read[0];
+            pos = readVarint(value, pos, read);
+            if (pos == -1) {
+                return null;
+            }
+            if (size + 2 > toRet.length) {
+                toRet = Arrays.copyOf(toRet, toRet.length * 2);
+            }
+            toRet[size++] = offset;
+            toRet[size++] = read[0];
+            last = offset;
+        }
+        return Arrays.copyOf(toRet, size);
+    }
+
+    private static void writeVarint(StringBuilder sb, int value) {
+        while ((value & ~0x1F) != 0) {
+            sb.append(DIGITS.charAt(0x20 | (value & 0x1F)));
+            value >>>= 5;
+        }
+        sb.append(DIGITS.charAt(value));
+    }
+
+    /**
+     * @return position after the varint, -1 if malformed
+     */
+    private static int readVarint(String value, int pos, int[] result) {
+        int toRet = 0;
+        int shift = 0;
+        while (pos < value.length() && shift < 32) {
+            char c = value.charAt(pos++);
+            int digit = c < VALUES.length ? VALUES[c] : -1;
+            if (digit == -1) {
+                return -1;
+            }
+            toRet |= (digit & 0x1F) << shift;
+            if ((digit & 0x20) == 0) {
+                result[0] = toRet;
+                return pos;
+            }
+            shift += 5;
+        }
+        return -1;
+    }
+}
@@ -74,13 +74,32 @@ public class PPSymbolProvider implements SymbolProvider{
             }
             QuerySupport qs = QuerySupport.forRoots(PPIndexerFactory.INDEXER_TYPE, PPIndexerFactory.INDEXER_VERSION, roots.toArray(new FileObject[0]));
             if (cancelled.get()) return;
-            for ( IndexResult r :qs.query(PPIndexer.FLD_VAR, text, PPTypeProvider.searchType2Kind(type), PPIndexer.FLD_ROOT, PPIndexer.FLD_VAR)) {
+            for ( IndexResult r :qs.query(PPIndexer.FLD_VAR, text, PPTypeProvider.searchType2Kind(type), PPIndexer.FLD_DECL)) {
                 if (cancelled.get()) return;
-                final String root = r.getValue(PPIndexer.FLD_ROOT);
-                for (String v : r.getValues(PPIndexer.FLD_VAR)) {
+                final String[] decls = r.getValues(PPIndexer.FLD_DECL);
+                if (decls == null) {
+                    continue;
+                }
+                //a file can declare several classes and top scope variables, each declaration knows its owner
+                for (String decl : decls) {
                     if (cancelled.get()) return;
+                    int at = decl.lastIndexOf('@');
+                    if (!decl.startsWith("$") || at == -1) {
+                        continue; //class or define
+                    }
+                    String qualified = decl.substring(0, at);
+                    int classEnd = qualified.lastIndexOf("::");
+                    String v = qualified.substring(classEnd == -1 ? 1 : classEnd + 2);
+                    int offset;
+                    try {
+                        offset = Integer.parseInt(decl.substring(at + 1));
+                    } catch (NumberFormatException ex) {
+                        continue;
+                    }
                     if (matches(v, type, text)) {
-                        result.addResult(new PPSymbolProvider.SymbolDescriptorImpl(v, root, r.getFile(), 0));
+                        //node variables are not qualified
+                        String root = classEnd == -1 ? null : qualified.substring(1, classEnd);
+                        result.addResult(new PPSymbolProvider.SymbolDescriptorImpl(v, root, r.getFile(), offset));
                     }
                 }
             }
@@ -171,7 +190,6 @@ public class PPSymbolProvider implements SymbolProvider{
 
         @Override
         public int getOffset() {
-            //TODO
             return offset;
         }
 
@@ -96,9 +96,14 @@ public class PPTypeProvider implements TypeProvider {
             }
             QuerySupport qs = QuerySupport.forRoots(PPIndexerFactory.INDEXER_TYPE, PPIndexerFactory.INDEXER_VERSION, roots.toArray(new FileObject[0]));
             if (cancelled.get()) return;
-            for ( IndexResult r :qs.query(PPIndexer.FLD_ROOT, text, searchType2Kind(type), PPIndexer.FLD_ROOT)) {
+            for ( IndexResult r :qs.query(PPIndexer.FLD_ROOT, text, searchType2Kind(type), PPIndexer.FLD_ROOT, PPIndexer.FLD_DECL)) {
                 if (cancelled.get()) return;
-                result.addResult(new TypeDescriptorImpl(r.getValue(PPIndexer.FLD_ROOT), r.getFile(), 0));
+                String name = r.getValue(PPIndexer.FLD_ROOT);
+                if (name == null || name.isEmpty()) {
+                    continue; //top level statements only
+                }
+                int offset = PPIndexer.findDeclaration(r.getValues(PPIndexer.FLD_DECL), name);
+                result.addResult(new TypeDescriptorImpl(name, r.getFile(), Math.max(0, offset)));
             }
         } catch (IOException ex) {
             Exceptions.printStackTrace(ex);
@@ -204,7 +209,6 @@ public class PPTypeProvider implements TypeProvider {
 
         @Override
         public int getOffset() {
-            //TODO
             return offset;
         }
 
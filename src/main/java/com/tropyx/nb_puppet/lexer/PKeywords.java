@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.lexer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Perfect hash of the word tokens (keywords, text operators and functions callable without parentheses),
+ * generated from {@link PTokenId#fixedText()} when the class is loaded. The hash looks at the length,
+ * first, middle and last character only, a hit is confirmed by comparing the text.
+ * A new word that shares all four with an existing one makes the class fail to load.
+ */
+final class PKeywords {
+
+    private static final PTokenId[] TABLE;
+    private static final int MASK;
+    private static final int SEED;
+    private static final int MAX_SIZE = 1 << 16;
+
+    static {
+        List<PTokenId> words = new ArrayList<>();
+        for (PTokenId id : PTokenId.values()) {
+            if (isWord(id.fixedText())) {
+                words.add(id);
+            }
+        }
+        checkDistinct(words);
+        PTokenId[] table = null;
+        int seed = 0;
+        int size = Integer.highestOneBit(words.size()) * 2;
+        search:
+        while (true) {
+            for (seed = 1; seed < 10000; seed++) {
+                table = fill(words, seed, size - 1);
+                if (table != null) {
+                    break search;
+                }
+            }
+            size *= 2;
+            if (size > MAX_SIZE) {
+                throw new IllegalStateException("No perfect hash for " + words.size() + " words");
+            }
+        }
+        TABLE = table;
+        MASK = size - 1;
+        SEED = seed;
+    }
+
+    private PKeywords() {
+    }
+
+    /**
+     * @return the word token with the given text, null for plain identifiers
+     */
+    static PTokenId find(CharSequence text) {
+        int length = text.length();
+        if (length == 0) {
+            return null;
+        }
+        PTokenId id = TABLE[hash(SEED, length, text.charAt(0), text.charAt(length >> 1), text.charAt(length - 1)) & MASK];
+        if (id == null) {
+            return null;
+        }
+        String fixed = id.fixedText();
+        if (fixed.length() != length) {
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            if (fixed.charAt(i) != text.charAt(i)) {
+                return null;
+            }
+        }
+        return id;
+    }
+
+    private static int hash(int seed, int length, char first, char middle, char last) {
+        int h = ((first * seed + middle) * seed + last) * 31 + length;
+        return h ^ (h >>> 7);
+    }
+
+    /**
+     * two words with the same length, first, middle and last character collide for every seed,
+     * the search would never end, fail when the class loads instead
+     */
+    private static void checkDistinct(List<PTokenId> words) {
+        Map<String, PTokenId> keys = new HashMap<>();
+        for (PTokenId id : words) {
+            String text = id.fixedText();
+            String key = text.length() + ":" + text.charAt(0) + text.charAt(text.length() >> 1) + text.charAt(text.length() - 1);
+            PTokenId other = keys.put(key, id);
+            if (other != null) {
+                throw new IllegalStateException("Words " + other.fixedText() + " and " + text + " cannot be told apart by the hash");
+            }
+        }
+    }
+
+    /**
+     * @return null on collision
+     */
+    private static PTokenId[] fill(List<PTokenId> words, int seed, int mask) {
+        PTokenId[] table = new PTokenId[mask + 1];
+        for (PTokenId id : words) {
+            String text = id.fixedText();
+            int index = hash(seed, text.length(), text.charAt(0), text.charAt(text.length() >> 1), text.charAt(text.length() - 1)) & mask;
+            if (table[index] != null) {
+                return null;
+            }
+            table[index] = id;
+        }
+        return table;
+    }
+
+    private static boolean isWord(String text) {
+        if (text == null || text.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 'a' || c > 'z') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -21,8 +21,13 @@ import com.tropyx.nb_puppet.PPConstants;
 import java.util.Collection;
 import java.util.EnumSet;
 import javax.swing.text.Document;
+import org.netbeans.api.lexer.InputAttributes;
+import org.netbeans.api.lexer.LanguagePath;
+import org.netbeans.api.lexer.PartType;
+import org.netbeans.api.lexer.Token;
 import org.netbeans.api.lexer.TokenHierarchy;
 import org.netbeans.api.lexer.TokenSequence;
+import org.netbeans.spi.lexer.LanguageEmbedding;
 import org.netbeans.spi.lexer.LanguageHierarchy;
 import org.netbeans.spi.lexer.Lexer;
 import org.netbeans.spi.lexer.LexerRestartInfo;
@@ -46,6 +51,28 @@ public class PLangHierarchy extends LanguageHierarchy<PTokenId>
         return new PLexer(lri);
     }
 
+    /**
+     * double quoted strings and interpolated heredoc bodies embed {@link PStringTokenId},
+     * the quotes are skipped
+     */
+    @Override
+    protected LanguageEmbedding<?> embedding(Token<PTokenId> token, LanguagePath languagePath, InputAttributes inputAttributes)
+    {
+        switch (token.id()) {
+            case STRING_LITERAL:
+                if (token.text().charAt(0) != '"') {
+                    return null;
+                }
+                return token.partType() == PartType.COMPLETE && token.length() > 1
+                        ? LanguageEmbedding.create(PStringTokenId.language(), 1, 1)
+                        : LanguageEmbedding.create(PStringTokenId.language(), 1, 0);
+            case INTERPOLATED_HEREDOC_BODY:
+                return LanguageEmbedding.create(PStringTokenId.language(), 0, 0);
+            default:
+                return null;
+        }
+    }
+
     @Override
     protected String mimeType()
     {
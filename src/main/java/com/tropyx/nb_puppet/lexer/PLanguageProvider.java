@@ -32,9 +32,11 @@ import org.netbeans.spi.lexer.LanguageProvider;
 public class PLanguageProvider extends LanguageProvider {
     
     @Override
-    public Language<PTokenId> findLanguage (String mimeType) {
+    public Language<?> findLanguage (String mimeType) {
         if (PPConstants.MIME_TYPE.equals (mimeType))
             return new PLangHierarchy ().language ();
+        if (PPConstants.STRING_MIME_TYPE.equals (mimeType))
+            return PStringTokenId.language ();
         return null;
     }
 
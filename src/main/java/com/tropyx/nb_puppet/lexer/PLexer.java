@@ -36,16 +36,21 @@ public class PLexer implements Lexer<PTokenId>
     private final LexerInput input;
 
     private final TokenFactory<PTokenId> tokenFactory;
+    private PendingHeredoc heredoc;
 
     PLexer(LexerRestartInfo<PTokenId> lri)
     {
         input = lri.input();
         tokenFactory = lri.tokenFactory();
+        heredoc = (PendingHeredoc) lri.state();
     }
 
     @Override
     public Token<PTokenId> nextToken()
     {
+        if (heredoc != null && heredoc.atBody) {
+            return finishHeredocBody();
+        }
         while (true)
         {
             int c = nextChar();
@@ -60,6 +65,10 @@ public class PLexer implements Lexer<PTokenId>
                         switch (nextChar()) {
                             case '\r': consumeNewline();
                             case '\n':
+                                if (heredoc != null) {
+                                    heredoc = heredoc.atBody();
+                                }
+                                return token(PTokenId.LINE_COMMENT);
                             case EOF:
                                 return token(PTokenId.LINE_COMMENT);
                         }
@@ -77,11 +86,10 @@ public class PLexer implements Lexer<PTokenId>
                                 return tokenFactory.createToken(PTokenId.STRING_LITERAL,
                                         input.readLength(), PartType.START);
                         }
-                case '"': // string literal
+                case '"': // string literal, the content is lexed as embedded PStringTokenId
                     while (true)
                         switch (nextChar()) {
                             case '"': // NOI18N
-                                //TODO make different from '?
                                 return token(PTokenId.STRING_LITERAL);
                             case '\\':
                                 nextChar(); // read escaped char
@@ -89,13 +97,23 @@ public class PLexer implements Lexer<PTokenId>
                             case '\r': consumeNewline();
                             case '\n':
                             case EOF:
-                                //TODO make different from '?
                                 return tokenFactory.createToken(PTokenId.STRING_LITERAL,
                                         input.readLength(), PartType.START);
                         }
 
                 case '$':
                     return finishVariable(c);
+
+                case '@':
+                    if (nextChar() == '(') {
+                        Token<PTokenId> tag = finishHeredocTag();
+                        if (tag != null) {
+                            return tag;
+                        }
+                    } else {
+                        backup(1);
+                    }
+                    return token(PTokenId.ERROR);
                     
                 case '!': 
                     switch (c = nextChar())
@@ -132,7 +150,7 @@ public class PLexer implements Lexer<PTokenId>
                         case '=' : return token(PTokenId.OPERATOR);
                         case '<' : {
                             if ((c = nextChar()) == '|') {
-                                return token(PTokenId.REXPORTCOLLECTOR);
+                                return token(PTokenId.LEXPORTCOLLECTOR);
                             } else {
                                 backup(1);
                                 return token(PTokenId.OPERATOR);
@@ -190,327 +208,13 @@ public class PLexer implements Lexer<PTokenId>
                 case '?':
                     return token(PTokenId.QUESTIONMARK); 
                     
-                case 'a' :
-                    switch (c = nextChar())
-                    {
-                        case 'n' :
-                            if ((c = nextChar()) == 'd') 
-                            {
-                                return textOperatorOrIdentifier(PTokenId.AND);
-                            }
-                            break;
-                        case 'b':
-                            if ((c = nextChar()) == 's'
-                             && (c = nextChar()) == 'e'
-                             && (c = nextChar()) == 'n'
-                             && (c = nextChar()) == 't')
-                            {
-                                return keywordOrIdentifier(PTokenId.ABSENT);
-                            }
-                            break;
-                    }                            
-                    return finishIdentifier(c);
-                    
-                case 'c' :
-                    switch (c = nextChar())
-                    {
-                        case 'a' :
-                            if ((c = nextChar()) == 's'
-                             && (c = nextChar()) == 'e') 
-                            {
-                                return keywordOrIdentifier(PTokenId.CASE);
-                            }
-                            break;
-                        case 'l' :
-                            if ((c = nextChar()) == 'a'
-                             && (c = nextChar()) == 's'
-                             && (c = nextChar()) == 's') 
-                            {
-                                return keywordOrIdentifier(PTokenId.CLASS);
-                            }
-                            break;
-                        case 'o': 
-                            switch (c = nextChar()) 
-                            {
-                                case 'n' :
-                                    if ((c = nextChar()) == 't'
-                                     && (c = nextChar()) == 'a'
-                                     && (c = nextChar()) == 'i'
-                                     && (c = nextChar()) == 'n') 
-                                    {
-                                        return functionOrIdentifier(PTokenId.CONTAIN);
-                                    }
-                                    break;
-                            }
-                            break;
-                    }
-                    return finishIdentifier(c);
-                    
-                        
-                case 'd' : 
-                    if ((c = nextChar()) == 'e') {
-                        switch (c = nextChar()) {
-                            case 'f':
-                                switch (c = nextChar()) {
-                                    case 'i':
-                                        if ((c = nextChar()) == 'n'
-                                         && (c = nextChar()) == 'e') {
-                                            return keywordOrIdentifier(PTokenId.DEFINE);
-                                        }
-                                        break;
-                                    case 'a':
-                                        if ((c = nextChar()) == 'u'
-                                         && (c = nextChar()) == 'l'
-                                         && (c = nextChar()) == 't') {
-                                            return keywordOrIdentifier(PTokenId.DEFAULT);
-                                        }
-                                        break;
-                                }
-                                break;
-                            case 'b': 
-                                if ((c = nextChar()) == 'u'
-                                 && (c = nextChar()) == 'g') {
-                                    return keywordOrIdentifier(PTokenId.DEBUG);
-                                }
-                                break;
-                        }
-                    }
-                    return finishIdentifier(c);
-                    
-                case 'e' :
-                    switch (c = nextChar())
-                    {
-                        case 'l':
-                            if ((c = nextChar()) == 's') 
-                            {
-                                switch (c = nextChar()) {
-                                    case 'e' : return keywordOrIdentifier(PTokenId.ELSE);
-                                    case 'i' : 
-                                        if ((c = nextChar()) == 'f') {
-                                            return keywordOrIdentifier(PTokenId.ELSIF);
-                                        }
-                                        break;
-                                }
-                            }
-                            break;
-                        case 'r' :
-                            if ((c = nextChar()) == 'r') {
-                                return functionOrIdentifier(PTokenId.ERR);
-                            }
-                            break;
-                    }
-                    return finishIdentifier(c);
-                case 'f':
-                    switch (c = nextChar())
-                    {
-                        case 'a':
-                            switch (c = nextChar()) {
-                                case 'i' :
-                                    if ((c = nextChar()) == 'l')
-                                    {
-                                        return functionOrIdentifier(PTokenId.FAIL);
-                                    }
-                                    break;
-                                case 'l' :
-                                    if ((c = nextChar()) == 's'
-                                      && (c = nextChar()) == 'e') {
-                                        return keywordOrIdentifier(PTokenId.FALSE);
-                                    }
-                                    break;
-                            }
-                            break;
-                    }
-                    return finishIdentifier(c);
-                
-                case 'h' :
-                    return finishIdentifier(c);
-                    
-                case 'i':
-                    switch (c = nextChar())
-                    {
-                        case 'f':
-                            return keywordOrIdentifier(PTokenId.IF);
-                        case 'm':
-                            if ((c = nextChar()) == 'p'
-                                    && (c = nextChar()) == 'o'
-                                    && (c = nextChar()) == 'r'
-                                    && (c = nextChar()) == 't')
-                            {
-                                return keywordOrIdentifier(PTokenId.IMPORT);
-                            }
-                            break;
-                        case 'n':
-                            
-                            switch (c = nextChar())
-                            {
-                                case 'h':
-                                    if ((c = nextChar()) == 'e'
-                                        && (c = nextChar()) == 'r'
-                                        && (c = nextChar()) == 'i'
-                                        && (c = nextChar()) == 't'
-                                        && (c = nextChar()) == 's')
-                                    {
-                                        return keywordOrIdentifier(PTokenId.INHERITS);
-                                    }
-                                    break;
-                                    
-                                case 'c':
-                                    if ((c = nextChar()) == 'l'
-                                        && (c = nextChar()) == 'u'
-                                        && (c = nextChar()) == 'd'
-                                        && (c = nextChar()) == 'e')
-                                    {
-                                        return functionOrIdentifier(PTokenId.INCLUDE);
-                                    }
-                                    break;
-                            }
-                            break;
-                            
-                    }
-                    return finishIdentifier(c);
-                    
-                case 'l' :
-                    return finishIdentifier(c);
-                case 'm' :
-                        return finishIdentifier(c);
-                case 'n' :
-                    switch (c = nextChar()) {
-                        case 'o' :
-                            switch (c = nextChar())
-                            {
-                                case 't':
-                                    if ((c = nextChar()) == 'i'
-                                     && (c = nextChar()) == 'c'
-                                     && (c = nextChar()) == 'e')
-                                    {
-                                        return functionOrIdentifier(PTokenId.NOTICE);
-                                    }
-                                    return finishIdentifier(c);
-                                case 'd':
-                                    if ((c = nextChar()) == 'e')
-                                    {
-                                        return keywordOrIdentifier(PTokenId.NODE);
-                                    }
-                                    return finishIdentifier(c);
-                            }
-                            break;
-                        case 'i' :
-                            if ((c = nextChar()) == 'l') {
-                                return keywordOrIdentifier(PTokenId.NIL);
-                            }
-                            return finishIdentifier(c);
-                    }
-                    return finishIdentifier(c);
-                    
-                case 'o' :
-                    if ((c = nextChar()) == 'r')
-                    {
-                        return textOperatorOrIdentifier(PTokenId.OR, c);
-                    }
-                    return finishIdentifier(c);
-                    
-                case 'p' :
-                    if ((c = nextChar()) == 'r'
-                     && (c = nextChar()) == 'e'
-                     && (c = nextChar()) == 's'
-                     && (c = nextChar()) == 'e'
-                     && (c = nextChar()) == 'n'
-                     && (c = nextChar()) == 't')
-                    {
-                        return keywordOrIdentifier(PTokenId.PRESENT);
-                    }
-                    return finishIdentifier(c);
+                // lowercase letters start keywords, text operators, functions and identifiers
+                case 'a': case 'b': case 'c': case 'd': case 'e': case 'f': case 'g':
+                case 'h': case 'i': case 'j': case 'k': case 'l': case 'm': case 'n':
+                case 'o': case 'p': case 'q': case 'r': case 's': case 't': case 'u':
+                case 'v': case 'w': case 'x': case 'y': case 'z':
+                    return finishWord();
 
-                case 'r' :
-                    
-                    if ((c = nextChar()) == 'e') {
-                        switch (c = nextChar()) {
-                            case 'q' :
-                                if ((c = nextChar()) == 'u'
-                                        && (c = nextChar()) == 'i'
-                                        && (c = nextChar()) == 'r'
-                                        && (c = nextChar()) == 'e') {
-                                    return functionOrIdentifier(PTokenId.REQUIRE);
-                                }
-                                break;
-                            case 'a':
-                                if ((c = nextChar()) == 'l'
-                                        && (c = nextChar()) == 'i'
-                                        && (c = nextChar()) == 'z'
-                                        && (c = nextChar()) == 'e') {
-                                    return functionOrIdentifier(PTokenId.REALIZE);
-                                }
-                                break;
-                        }
-                    }
-                    return finishIdentifier(c);
-                case 's' :
-                    return finishIdentifier(c);
-                case 't' :
-                    switch (c = nextChar()) {
-                        case 'a' :
-                            if ((c = nextChar()) == 'g') {
-                                //TODO tagged
-                                return functionOrIdentifier(PTokenId.TAG);
-                            }
-                            break;
-                        case 'r' :
-                            if ((c = nextChar()) == 'u'
-                               && (c = nextChar()) == 'e')
-                            {
-                                return keywordOrIdentifier(PTokenId.TRUE);
-                            }
-                            break;
-                            
-                    }
-                    return finishIdentifier(c);
-                    
-                case 'u' :
-                    if ((c = nextChar()) == 'n') {
-                        switch (c = nextChar()) {
-                            case 'd':
-                                if ((c = nextChar()) == 'e'
-                                    && (c = nextChar()) == 'f')
-                                {
-                                    return keywordOrIdentifier(PTokenId.UNDEF);
-                                }
-                                break;
-                                
-                            case 'l':
-                                if ((c = nextChar()) == 'e'
-                                    && (c = nextChar()) == 's'
-                                    && (c = nextChar()) == 's')
-                                {
-                                    return keywordOrIdentifier(PTokenId.UNLESS);
-                                }
-                                break;
-                        }
-                    }
-                    return finishIdentifier(c);
-                case 'v' :
-                    return finishIdentifier(c);
-                    
-                case 'w' :
-                    if ((c = nextChar()) == 'a'
-                     && (c = nextChar()) == 'r' 
-                     && (c = nextChar()) == 'n' 
-                     && (c = nextChar()) == 'i' 
-                     && (c = nextChar()) == 'n' 
-                     && (c = nextChar()) == 'g') 
-                    {
-                        return functionOrIdentifier(PTokenId.WARNING);
-                    }
-                    return finishIdentifier(c);
-
-                // Rest of lowercase letters starting identifiers
-                case 'b':
-                case 'g':
-                case 'j':
-                case 'k':
-                case 'q':
-                case 'x':
-                case 'y':
-                case 'z':
                 // Uppercase letters starting identifiers
                 case 'A':
                 case 'B':
@@ -562,8 +266,13 @@ public class PLexer implements Lexer<PTokenId>
                     
 // All Character.isWhitespace(c) below 0x80 follow
                 // ['\t' - '\r'] and [0x1c - ' ']
-                case '\t':
                 case '\n':
+                    if (heredoc != null) {
+                        heredoc = heredoc.atBody();
+                        return tokenFactory.createToken(PTokenId.WHITESPACE);
+                    }
+                    return finishWhitespace();
+                case '\t':
                 case 0x0b:
                 case '\f':
                 case '\r':
@@ -580,6 +289,7 @@ public class PLexer implements Lexer<PTokenId>
                                ? tokenFactory.getFlyweightToken(PTokenId.WHITESPACE, " ")
                                : tokenFactory.createToken(PTokenId.WHITESPACE);
                     }
+                    backup(1);
                     return finishWhitespace();
 
                 case EOF:
@@ -733,30 +443,28 @@ public class PLexer implements Lexer<PTokenId>
     }
     
 
-    private Token<PTokenId> keywordOrIdentifier(PTokenId keywordId)
+    /**
+     * reads the word started by a lowercase letter and looks it up in {@link PKeywords},
+     * anything not found there continues as identifier (eg. with :: segments).
+     */
+    private Token<PTokenId> finishWord()
     {
-        return keywordOrIdentifier(keywordId, nextChar());
-    }
-
-    private Token<PTokenId> keywordOrIdentifier(PTokenId keywordId, int c)
-    {
-        // Check whether the given char is non-ident and if so then return keyword
-        if (c == EOF || !Character.isJavaIdentifierPart(c = translateSurrogates(c)))
-        {
-            // For surrogate 2 chars must be backed up
-            backup((c >= Character.MIN_SUPPLEMENTARY_CODE_POINT) ? 2 : 1);
-            return token(keywordId);
-        } else // c is identifier part
-        {
+        int c;
+        do {
+            c = nextChar();
+        } while (c != EOF && Character.isJavaIdentifierPart(c = translateSurrogates(c)));
+        // For surrogate 2 chars must be backed up
+        backup((c >= Character.MIN_SUPPLEMENTARY_CODE_POINT) ? 2 : 1);
+        PTokenId id = PKeywords.find(input.readText());
+        if (id == null) {
             return finishIdentifier();
         }
+        if (PTokenId.Category.FUNCTION.equals(id.primaryCategory())) {
+            return functionOrIdentifier(id, nextChar());
+        }
+        return token(id);
     }
-    
-    private Token<PTokenId> functionOrIdentifier(PTokenId functionid)
-    {
-        return functionOrIdentifier(functionid, nextChar());
-    }
-    
+
 
     private Token<PTokenId> functionOrIdentifier(PTokenId functionId, int c)
     {
@@ -786,32 +494,16 @@ public class PLexer implements Lexer<PTokenId>
         }
     }
     
-    private Token<PTokenId> textOperatorOrIdentifier(PTokenId textOpId)
-    {
-        return textOperatorOrIdentifier(textOpId, nextChar());
-    }
-    
-    
-    private Token<PTokenId> textOperatorOrIdentifier(PTokenId textOpId, int c)
-    {
-        // Check whether the given char is non-ident and if so then return keyword
-        if (c == EOF || !Character.isJavaIdentifierPart(c = translateSurrogates(c)))
-        {
-            // For surrogate 2 chars must be backed up
-            backup((c >= Character.MIN_SUPPLEMENTARY_CODE_POINT) ? 2 : 1);
-            return token(textOpId);
-        } else // c is identifier part
-        {
-            return finishIdentifier();
-        }
-    }
-    
-    
     private Token<PTokenId> finishWhitespace()
     {
         while (true)
         {
             int c = nextChar();
+            if (c == '\n' && heredoc != null) {
+                // the heredoc body starts on the next line
+                heredoc = heredoc.atBody();
+                return tokenFactory.createToken(PTokenId.WHITESPACE);
+            }
             // There should be no surrogates possible for whitespace
             // so do not call translateSurrogates()
             if (c == EOF || !Character.isWhitespace(c))
@@ -906,7 +598,7 @@ private Token<PTokenId> finishNumberLiteral(int c, boolean inFraction) {
     @Override
     public Object state()
     {
-        return null;
+        return heredoc;
     }
 
     @Override
@@ -940,6 +632,126 @@ private Token<PTokenId> finishNumberLiteral(int c, boolean inFraction) {
             }
         }
     }
+    /**
+     * reads the rest of @(tag:syntax/escapes), the tag is quoted for interpolated heredocs.
+     * @return null if there is no closing ) on the line
+     */
+    private Token<PTokenId> finishHeredocTag() {
+        int c;
+        while ((c = nextChar()) != ')') {
+            if (c == '\n' || c == '\r' || c == EOF) {
+                input.backup(input.readLengthEOF() - 1);
+                return null;
+            }
+        }
+        String spec = input.readText(2, input.readLength() - 1).toString().trim();
+        boolean interpolated = spec.startsWith("\"");
+        String tag;
+        if (interpolated) {
+            int end = spec.indexOf('"', 1);
+            tag = end != -1 ? spec.substring(1, end) : "";
+        } else {
+            int end = spec.length();
+            for (int i = 0; i < spec.length(); i++) {
+                if (spec.charAt(i) == ':' || spec.charAt(i) == '/') {
+                    end = i;
+                    break;
+                }
+            }
+            tag = spec.substring(0, end).trim();
+        }
+        if (tag.isEmpty()) {
+            input.backup(input.readLengthEOF() - 1);
+            return null;
+        }
+        heredoc = new PendingHeredoc(tag, interpolated, false);
+        return token(PTokenId.HEREDOC);
+    }
+
+    /**
+     * reads the heredoc lines up to and including the end tag, eg. "  |- END".
+     * The line end after the tag is left for the following whitespace token.
+     */
+    private Token<PTokenId> finishHeredocBody() {
+        PTokenId id = heredoc.interpolated ? PTokenId.INTERPOLATED_HEREDOC_BODY : PTokenId.HEREDOC_BODY;
+        String tag = heredoc.tag;
+        heredoc = null;
+        if (input.read() == EOF) {
+            return null;
+        }
+        input.backup(1);
+        while (true) {
+            int c = skipBlanks();
+            if (c == '|') {
+                c = skipBlanks();
+            }
+            if (c == '-') {
+                c = skipBlanks();
+            }
+            int i = 0;
+            while (i < tag.length() && c == tag.charAt(i)) {
+                c = input.read();
+                i++;
+            }
+            if (i == tag.length()) {
+                while (c == ' ' || c == '\t') {
+                    c = input.read();
+                }
+                if (c == '\n' || c == '\r' || c == EOF) {
+                    input.backup(1);
+                    return tokenFactory.createToken(id);
+                }
+            }
+            while (c != '\n' && c != EOF) {
+                c = input.read();
+            }
+            if (c == EOF) {
+                return tokenFactory.createToken(id, input.readLength(), PartType.START);
+            }
+        }
+    }
+
+    private int skipBlanks() {
+        int c;
+        do {
+            c = input.read();
+        } while (c == ' ' || c == '\t');
+        return c;
+    }
+
+    /**
+     * lexer state between a heredoc tag and its body, which starts on the line following the tag
+     */
+    private static final class PendingHeredoc {
+        final String tag;
+        final boolean interpolated;
+        final boolean atBody;
+
+        PendingHeredoc(String tag, boolean interpolated, boolean atBody) {
+            this.tag = tag;
+            this.interpolated = interpolated;
+            this.atBody = atBody;
+        }
+
+        PendingHeredoc atBody() {
+            return atBody ? this : new PendingHeredoc(tag, interpolated, true);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PendingHeredoc)) {
+                return false;
+            }
+            PendingHeredoc other = (PendingHeredoc) obj;
+            return tag.equals(other.tag) && interpolated == other.interpolated && atBody == other.atBody;
+        }
+
+        @Override
+        public int hashCode() {
+            return tag.hashCode() * 4 + (interpolated ? 2 : 0) + (atBody ? 1 : 0);
+        }
+    }
+
     private Token<PTokenId> finishMultiComment() {
         boolean candidate = false;
         int c;
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.lexer;
+
+import org.netbeans.api.lexer.Token;
+import org.netbeans.spi.lexer.Lexer;
+import org.netbeans.spi.lexer.LexerInput;
+import org.netbeans.spi.lexer.LexerRestartInfo;
+import org.netbeans.spi.lexer.TokenFactory;
+
+/**
+ * lexes the content of double quoted strings and interpolated heredocs into {@link PStringTokenId}s.
+ * @author mkleint
+ */
+final class PStringLexer implements Lexer<PStringTokenId> {
+
+    private static final int EOF = LexerInput.EOF;
+    private final LexerInput input;
+    private final TokenFactory<PStringTokenId> tokenFactory;
+    /** -1 outside of ${}, 0 right after ${, otherwise the brace depth inside the interpolation */
+    private int depth;
+
+    PStringLexer(LexerRestartInfo<PStringTokenId> info) {
+        input = info.input();
+        tokenFactory = info.tokenFactory();
+        depth = info.state() != null ? (Integer) info.state() : -1;
+    }
+
+    @Override
+    public Token<PStringTokenId> nextToken() {
+        int c = input.read();
+        if (c == EOF) {
+            return null;
+        }
+        if (depth < 0) {
+            if (c == '$' && atVariableStart()) {
+                if (input.read() == '{') {
+                    depth = 0;
+                    return token(PStringTokenId.INTERPOLATION);
+                }
+                input.backup(1);
+                readName();
+                return token(PStringTokenId.VARIABLE);
+            }
+            // the escaped char is part of the text, eg. \$foo is no variable
+            if (c == '\\' && input.read() == EOF) {
+                input.backup(1);
+            }
+            return finishText();
+        }
+        if (depth == 0) {
+            depth = 1;
+            // ${name} and ${name[..]}, the name comes without $
+            if (c == ':' || isNameChar(c)) {
+                input.backup(1);
+                if (readName()) {
+                    return token(PStringTokenId.VARIABLE);
+                }
+                c = input.read();
+            }
+        }
+        return finishInterpolation(c);
+    }
+
+    private Token<PStringTokenId> finishText() {
+        while (true) {
+            switch (input.read()) {
+                case EOF:
+                    input.backup(1);
+                    return token(PStringTokenId.TEXT);
+                case '\\':
+                    if (input.read() == EOF) {
+                        input.backup(1);
+                    }
+                    break;
+                case '$':
+                    if (atVariableStart()) {
+                        input.backup(1);
+                        return token(PStringTokenId.TEXT);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private Token<PStringTokenId> finishInterpolation(int c) {
+        while (true) {
+            switch (c) {
+                case EOF:
+                    input.backup(1);
+                    return token(PStringTokenId.INTERPOLATION);
+                case '{':
+                    depth++;
+                    break;
+                case '}':
+                    if (--depth == 0) {
+                        depth = -1;
+                        return token(PStringTokenId.INTERPOLATION);
+                    }
+                    break;
+                case '$':
+                    if (input.readLength() > 1) {
+                        // variables in expressions get their own token
+                        if (atVariableStart()) {
+                            input.backup(1);
+                            return token(PStringTokenId.INTERPOLATION);
+                        }
+                    } else if (readName()) {
+                        return token(PStringTokenId.VARIABLE);
+                    }
+                    break;
+            }
+            c = input.read();
+        }
+    }
+
+    /**
+     * called after $, checks the following chars without consuming them
+     */
+    private boolean atVariableStart() {
+        int c = input.read();
+        if (c == '{' || isNameChar(c)) {
+            input.backup(1);
+            return true;
+        }
+        if (c == ':') {
+            boolean qualified = input.read() == ':';
+            input.backup(2);
+            return qualified;
+        }
+        input.backup(1);
+        return false;
+    }
+
+    /**
+     * reads a name with :: separators, a single trailing : is left out.
+     * @return false if nothing was read
+     */
+    private boolean readName() {
+        int start = input.readLength();
+        while (true) {
+            int c = input.read();
+            if (c == ':') {
+                if (input.read() == ':') {
+                    continue;
+                }
+                input.backup(2);
+                break;
+            }
+            if (c == EOF || !isNameChar(c)) {
+                input.backup(1);
+                break;
+            }
+        }
+        return input.readLength() > start;
+    }
+
+    private static boolean isNameChar(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private Token<PStringTokenId> token(PStringTokenId id) {
+        if (id == PStringTokenId.INTERPOLATION) {
+            // the delimiters are the most common interpolation tokens
+            if (input.readLength() == 2 && depth == 0) {
+                return tokenFactory.getFlyweightToken(id, "${");
+            }
+            if (input.readLength() == 1 && depth < 0) {
+                return tokenFactory.getFlyweightToken(id, "}");
+            }
+        }
+        return tokenFactory.createToken(id);
+    }
+
+    @Override
+    public Object state() {
+        return depth < 0 ? null : depth;
+    }
+
+    @Override
+    public void release() {
+    }
+}
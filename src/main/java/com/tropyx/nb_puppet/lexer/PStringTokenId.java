@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.lexer;
+
+import com.tropyx.nb_puppet.PPConstants;
+import java.util.Collection;
+import java.util.EnumSet;
+import org.netbeans.api.lexer.Language;
+import org.netbeans.api.lexer.TokenId;
+import org.netbeans.spi.lexer.LanguageHierarchy;
+import org.netbeans.spi.lexer.Lexer;
+import org.netbeans.spi.lexer.LexerRestartInfo;
+
+/**
+ * tokens embedded in double quoted strings and interpolated heredoc bodies,
+ * eg. <code>"a ${foo['x']} $bar"</code> is TEXT, INTERPOLATION <code>${</code>, VARIABLE <code>foo</code>,
+ * INTERPOLATION <code>['x']}</code>, TEXT, VARIABLE <code>$bar</code>.
+ * The name of a VARIABLE directly following <code>${</code> comes without the leading $.
+ * @author mkleint
+ */
+public enum PStringTokenId implements TokenId {
+    /** literal segment, including escapes */
+    TEXT("string"),
+    /** variable name, either $name or the name in ${name} */
+    VARIABLE("variable-declaration"),
+    /** the ${ and } delimiters and any expression in between that is not a variable */
+    INTERPOLATION("interpolation");
+
+    private final String category;
+
+    PStringTokenId(String category) {
+        this.category = category;
+    }
+
+    @Override
+    public String primaryCategory() {
+        return category;
+    }
+
+    private static final Language<PStringTokenId> LANGUAGE = new LanguageHierarchy<PStringTokenId>() {
+        @Override
+        protected Collection<PStringTokenId> createTokenIds() {
+            return EnumSet.allOf(PStringTokenId.class);
+        }
+
+        @Override
+        protected Lexer<PStringTokenId> createLexer(LexerRestartInfo<PStringTokenId> info) {
+            return new PStringLexer(info);
+        }
+
+        @Override
+        protected String mimeType() {
+            return PPConstants.STRING_MIME_TYPE;
+        }
+    }.language();
+
+    public static Language<PStringTokenId> language() {
+        return LANGUAGE;
+    }
+
+    /**
+     * @param text of a VARIABLE token
+     * @return the variable name with leading $, as used by {@link PTokenId#VARIABLE}
+     */
+    public static String variableName(CharSequence text) {
+        return text.length() > 0 && text.charAt(0) == '$' ? text.toString() : "$" + text;
+    }
+}
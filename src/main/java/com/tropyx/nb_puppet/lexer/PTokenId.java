@@ -78,6 +78,12 @@ public enum PTokenId implements TokenId
     LINE_COMMENT(null, "comment"),
     WHITESPACE(null, "whitespace"),
     STRING_LITERAL(null, "string"),
+    /** heredoc start, eg. @("END"), the text follows as one of the body tokens on the next line */
+    HEREDOC(null, "string"),
+    /** body of a heredoc with unquoted tag, up to and including the end tag */
+    HEREDOC_BODY(null, "string"),
+    /** body of a heredoc with quoted tag, embeds {@link PStringTokenId} */
+    INTERPOLATED_HEREDOC_BODY(null, "string"),
     REGEXP_LITERAL(null, "regexp"),
     VARIABLE(null, "variable-declaration"),
     
@@ -3,6 +3,9 @@ package com.tropyx.nb_puppet.parser;
 
 public class PBlob extends PElement {
 
+    /**
+     * relative to the offset, moves with the blob
+     */
     private int endOffset;
 
     public PBlob(PElement parent, int offset) {
@@ -11,11 +14,11 @@ public class PBlob extends PElement {
 
     @Override
     public int getEndOffset() {
-        return endOffset;
+        return getOffset() + endOffset;
     }
 
     public void setEndOffset(int length) {
-        this.endOffset = length;
+        this.endOffset = length - getOffset();
     }
 
     
@@ -30,6 +30,14 @@ public class PClass extends PElement implements PParamContainer {
         return name.getName();
     }
 
+    public int getNameOffset() {
+        return name.getOffset();
+    }
+
+    PIdentifier getNameIdentifier() {
+        return name;
+    }
+
     void setName(PIdentifier name) {
         this.name = name;
     }
@@ -19,7 +19,7 @@ package com.tropyx.nb_puppet.parser;
 
 public class PClassParam extends PElement {
     private String type;
-    private final PVariableDefinition variable;
+    private PVariableDefinition variable;
     private PElement defaultValue;
     
     PClassParam(PElement parent, int offset, PVariableDefinition var) {
@@ -28,6 +28,21 @@ public class PClassParam extends PElement {
         this.variable.setParent(this);
     }
 
+    /**
+     * for {@link PElementSerializer}, the variable is already a child and gets assigned later
+     */
+    PClassParam(PElement parent, int offset) {
+        super(CLASS_PARAM, parent, offset);
+    }
+
+    PVariableDefinition getVariableDefinition() {
+        return variable;
+    }
+
+    void setVariableDefinition(PVariableDefinition variable) {
+        this.variable = variable;
+    }
+
     public String getTypeType() {
         return type;
     }
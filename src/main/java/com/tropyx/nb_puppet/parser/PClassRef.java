@@ -28,6 +28,10 @@ public class PClassRef extends PElement {
         return name.getName();
     }
 
+    PIdentifier getNameIdentifier() {
+        return name;
+    }
+
     void setName(PIdentifier name) {
         this.name = name;
     }
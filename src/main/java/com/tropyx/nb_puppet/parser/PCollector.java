@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.parser;
+
+import java.util.Locale;
+
+/**
+ * resource collector, <code>User &lt;| groups == 'admin' |&gt;</code> or the exported
+ * <code>Sshkey &lt;&lt;| |&gt;&gt;</code>
+ */
+public class PCollector extends PElement {
+
+    private final String resourceType;
+    private final boolean exported;
+    private PBlob query;
+
+    public PCollector(PElement parent, int offset, String resourceType, boolean exported) {
+        super(COLLECTOR, parent, offset);
+        this.resourceType = resourceType;
+        this.exported = exported;
+    }
+
+    /**
+     * as defined in file
+     */
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    /**
+     * as the actual type (all lowercase)
+     */
+    public String getResource() {
+        return resourceType.toLowerCase(Locale.ENGLISH);
+    }
+
+    public boolean isExported() {
+        return exported;
+    }
+
+    /**
+     * @return the search expression between the delimiters, empty blob collects all resources of the type
+     */
+    public PBlob getQuery() {
+        return query;
+    }
+
+    void setQuery(PBlob query) {
+        this.query = query;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "[" + resourceType + (exported ? " exported" : "") + "]";
+    }
+}
@@ -19,6 +19,7 @@ package com.tropyx.nb_puppet.parser;
 
 public class PDefine extends PElement implements PParamContainer {
     private String name;
+    private int nameOffset;
     private PClassParam[] params = new PClassParam[0];
     
     public PDefine(PElement parent, int offset) {
@@ -29,8 +30,14 @@ public class PDefine extends PElement implements PParamContainer {
         return name;
     }
 
-    void setName(String name) {
+    void setName(String name, int nameOffset) {
         this.name = name;
+        //relative, moves with the define
+        this.nameOffset = nameOffset - getOffset();
+    }
+
+    public int getNameOffset() {
+        return getOffset() + nameOffset;
     }
 
     @Override
@@ -43,11 +43,27 @@ public class PElement {
     public static final int CONDITION = 17;
     public static final int FUNCTION = 18;
     public static final int IDENTIFIER = 19;
+    public static final int LAMBDA = 20;
+    public static final int COLLECTOR = 21;
+    public static final int RELATIONSHIP = 22;
 
     private final int type;    
     private final List<PElement> children = new ArrayList<>();
     private PElement parent;
-    private final int offset;
+    /**
+     * relative to the parent's offset, absolute while the element has no parent. Moving a subtree
+     * (incremental reparse) only changes the offset of its top element.
+     */
+    private int offset;
+    /**
+     * end offset computed by {@link #freeze() } relative to the offset, UNKNOWN while the tree is being built
+     */
+    private int frozenEnd = UNKNOWN;
+    /**
+     * true when frozen and the children don't overlap and are ordered by offset, allows binary search
+     */
+    private boolean sortedChildren;
+    private static final int UNKNOWN = Integer.MIN_VALUE;
 
     public PElement(int type, PElement parent, int offset) {
         this.type = type;
@@ -73,32 +89,77 @@ public class PElement {
     }
 
     public PElement getChildAtOffset(int offset) {
-        for (PElement child : getChildren()) {
-            if (child.getOffset() <= offset && child.getEndOffset() >= offset) {
-                return child.getChildAtOffset(offset);
+        if (!sortedChildren) {
+            for (PElement child : getChildren()) {
+                if (child.getOffset() <= offset && child.getEndOffset() >= offset) {
+                    return child.getChildAtOffset(offset);
+                }
             }
+            return this;
+        }
+        //last child starting at or before offset
+        int low = 0;
+        int high = children.size() - 1;
+        int index = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (children.get(mid).getOffset() <= offset) {
+                index = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (index == -1) {
+            return this;
+        }
+        // ranges are inclusive, a previous sibling ending at offset wins, as in document order
+        while (index > 0 && children.get(index - 1).getEndOffset() >= offset) {
+            index--;
+        }
+        PElement child = children.get(index);
+        if (child.getEndOffset() >= offset) {
+            return child.getChildAtOffset(offset);
         }
         return this;
     }
 
-    @SuppressWarnings("unchecked")
     public <T extends PElement> List<T> getChildrenOfType(Class<T> clazz, boolean recursive) {
         List<T> toRet = new ArrayList<>();
+        collectChildrenOfType(clazz, recursive, toRet);
+        return toRet;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends PElement> void collectChildrenOfType(Class<T> clazz, boolean recursive, List<T> toRet) {
         for (PElement ch : children) {
             if (clazz.equals(ch.getClass())) {
                 toRet.add((T)ch);
             }
             if (recursive) {
-                toRet.addAll(ch.getChildrenOfType(clazz, recursive));
+                ch.collectChildrenOfType(clazz, recursive, toRet);
+            }
+        }
+    }
+
+    /**
+     * visits this element and its subtree depth first, in document order.
+     */
+    public final void walk(PElementVisitor visitor) {
+        if (visitor.visit(this)) {
+            for (PElement ch : children) {
+                ch.walk(visitor);
             }
         }
-        return toRet;
     }
 
     public final void setParent(PElement parent) {
         if (this.parent != null) {
             throw new IllegalStateException("Cannot reassign parent element");
         }
+        if (parent != null) {
+            offset -= parent.getOffset();
+        }
         this.parent = parent;
         if (parent != null) {
             parent.addChild(this);
@@ -106,17 +167,84 @@ public class PElement {
     }
 
     public int getOffset() {
-        return offset;
+        int toRet = offset;
+        for (PElement p = parent; p != null; p = p.parent) {
+            toRet += p.offset;
+        }
+        return toRet;
+    }
+
+    /**
+     * moves this element and all its children by the given amount of characters,
+     * used when reusing subtrees of previous parse during incremental reparse.
+     */
+    void shift(int delta) {
+        offset += delta;
+    }
+
+    /**
+     * attaches this element (and it's subtree) to a different parent keeping its offset, the previous
+     * parent is left untouched as it's expected to be discarded.
+     */
+    void reparent(PElement newParent) {
+        int absolute = getOffset();
+        this.parent = newParent;
+        this.offset = absolute - newParent.getOffset();
+        newParent.addChild(this);
+    }
+
+    /**
+     * attaches an element without parent among the children in offset order, for elements that can only
+     * be placed once the tree is complete (heredoc bodies)
+     */
+    void insertChild(PElement child) {
+        if (child.parent != null) {
+            throw new IllegalStateException("Cannot reassign parent element");
+        }
+        int index = children.size();
+        while (index > 0 && children.get(index - 1).getOffset() > child.offset) {
+            index--;
+        }
+        child.offset -= getOffset();
+        child.parent = this;
+        children.add(index, child);
+        frozenEnd = UNKNOWN;
+        sortedChildren = false;
     }
 
     public int getEndOffset() {
+        if (frozenEnd != UNKNOWN) {
+            return getOffset() + frozenEnd;
+        }
         int size = children.size();
         if (size > 0) {
             return children.get(size - 1).getEndOffset();
         }
         return getOffset(); //TODO??
     }
-    
+
+    /**
+     * caches end offsets of the whole subtree and checks whether children can be binary searched,
+     * called once the tree is complete, see {@link PuppetParserResult}. Subtrees frozen before
+     * (reused by incremental reparse) are skipped, their cached values are relative.
+     */
+    void freeze() {
+        if (frozenEnd != UNKNOWN) {
+            return;
+        }
+        int lastEnd = UNKNOWN;
+        boolean sorted = true;
+        for (PElement ch : children) {
+            ch.freeze();
+            if (ch.getOffset() < lastEnd) {
+                sorted = false;
+            }
+            lastEnd = Math.max(lastEnd, ch.getEndOffset());
+        }
+        frozenEnd = getEndOffset() - getOffset();
+        sortedChildren = sorted;
+    }
+
     public int getType() {
         return type;
     }
@@ -127,6 +255,8 @@ public class PElement {
 
     private void addChild(PElement aThis) {
         children.add(aThis);
+        frozenEnd = UNKNOWN;
+        sortedChildren = false;
     }
 
     public String toStringRecursive() {
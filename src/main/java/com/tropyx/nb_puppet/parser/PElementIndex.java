@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.parser;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * all elements of a tree grouped by {@link PElement#getType() } in document order,
+ * built once per {@link PuppetParserResult}. The returned lists are shared and
+ * support {@link java.util.RandomAccess}, iterate them by index to avoid allocation.
+ * Each top level element has its own part of the index, an incremental reparse reuses the parts
+ * of the elements it moved over and only indexes the reparsed one.
+ */
+public final class PElementIndex {
+
+    /**
+     * top level element to its part, in document order
+     */
+    private final Map<PElement, Segment> segments;
+    private final List<?>[] byType;
+
+    public PElementIndex(PElement root) {
+        this(root, null);
+    }
+
+    /**
+     * @param previous index of the tree the unchanged top level elements of root come from, can be null
+     */
+    PElementIndex(PElement root, PElementIndex previous) {
+        List<PElement> children = root.getChildren();
+        segments = new IdentityHashMap<>(children.size() * 2);
+        Segment[] parts = new Segment[children.size()];
+        int types = 0;
+        for (int i = 0; i < parts.length; i++) {
+            PElement child = children.get(i);
+            Segment segment = previous != null ? previous.segments.get(child) : null;
+            if (segment == null) {
+                segment = new Segment(child);
+            }
+            segments.put(child, segment);
+            parts[i] = segment;
+            types = Math.max(types, segment.byType.length);
+        }
+        //sized by the highest type present, new element types need no change here
+        byType = new List<?>[types];
+        for (int type = 0; type < types; type++) {
+            byType[type] = list(parts, type);
+        }
+    }
+
+    private static List<PElement> list(Segment[] parts, int type) {
+        int count = 0;
+        for (Segment part : parts) {
+            if (part.count(type) > 0) {
+                count++;
+            }
+        }
+        PElement[][] arrays = new PElement[count][];
+        int[] starts = new int[count];
+        int size = 0;
+        int i = 0;
+        for (Segment part : parts) {
+            if (part.count(type) > 0) {
+                arrays[i] = part.byType[type];
+                starts[i++] = size;
+                size += part.count(type);
+            }
+        }
+        if (count == 1) {
+            return Collections.unmodifiableList(Arrays.asList(arrays[0]));
+        }
+        return count == 0 ? Collections.<PElement>emptyList() : new ConcatList(arrays, starts, size);
+    }
+
+    /**
+     * @param type one of the PElement type constants
+     * @return all elements of the type below the root, the same as
+     * <code>root.getChildrenOfType(clazz, true)</code> for the type's class, never null
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends PElement> List<T> get(int type) {
+        if (type < 0 || type >= byType.length) {
+            return Collections.emptyList();
+        }
+        return (List<T>) byType[type];
+    }
+
+    /**
+     * @return number of elements of given type
+     */
+    public int count(int type) {
+        return type < 0 || type >= byType.length ? 0 : byType[type].size();
+    }
+
+    /**
+     * elements of a top level element's subtree including itself
+     */
+    private static final class Segment {
+        private final PElement[][] byType;
+
+        Segment(PElement top) {
+            int[] counts = count(top, new int[0]);
+            byType = new PElement[counts.length][];
+            for (int i = 0; i < counts.length; i++) {
+                byType[i] = new PElement[counts[i]];
+            }
+            fill(top, byType, new int[counts.length]);
+        }
+
+        int count(int type) {
+            return type < byType.length ? byType[type].length : 0;
+        }
+
+        private static int[] count(PElement element, int[] counts) {
+            int type = element.getType();
+            if (type >= counts.length) {
+                counts = Arrays.copyOf(counts, type + 1);
+            }
+            counts[type]++;
+            for (PElement ch : element.getChildren()) {
+                counts = count(ch, counts);
+            }
+            return counts;
+        }
+
+        private static void fill(PElement element, PElement[][] elements, int[] positions) {
+            int type = element.getType();
+            elements[type][positions[type]++] = element;
+            for (PElement ch : element.getChildren()) {
+                fill(ch, elements, positions);
+            }
+        }
+    }
+
+    /**
+     * the segments' arrays of one type as a single list, found by binary search on their start positions
+     */
+    private static final class ConcatList extends AbstractList<PElement> implements RandomAccess {
+        private final PElement[][] arrays;
+        private final int[] starts;
+        private final int size;
+
+        ConcatList(PElement[][] arrays, int[] starts, int size) {
+            this.arrays = arrays;
+            this.starts = starts;
+            this.size = size;
+        }
+
+        @Override
+        public PElement get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            int part = Arrays.binarySearch(starts, index);
+            if (part < 0) {
+                part = -part - 2;
+            }
+            return arrays[part][index - starts[part]];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of a PElement tree.
+ * <p>
+ * Elements are written in document order, each as type, index of the parent, offset
+ * (delta to the previous element) and its own scalar values, strings go through a table so
+ * repeated names are written once. A second section holds the references between elements
+ * (class name, parameters, resource title, ...) as element indexes. Elements referenced but
+ * not attached to the tree are appended as detached subtrees.
+ * All numbers are varints.
+ */
+final class PElementSerializer {
+
+    private static final int MAGIC = 0x50415354; //PAST
+    /**
+     * bump when the binary layout changes
+     */
+    static final int FORMAT_VERSION = 1;
+
+    private PElementSerializer() {
+    }
+
+    static byte[] write(PElement root) throws IOException {
+        List<PElement> nodes = new ArrayList<>();
+        final Map<PElement, Integer> indexes = new IdentityHashMap<>();
+        collect(root, nodes, indexes);
+        //references to elements outside of the tree
+        List<PElement> refs = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            refs.clear();
+            references(nodes.get(i), refs);
+            for (PElement ref : refs) {
+                if (ref != null && !indexes.containsKey(ref)) {
+                    collect(ref, nodes, indexes);
+                }
+            }
+        }
+        Output out = new Output();
+        out.writeInt(MAGIC);
+        out.writeVarint(FORMAT_VERSION);
+        out.writeVarint(nodes.size());
+        int lastOffset = 0;
+        for (PElement e : nodes) {
+            out.writeVarint((e.getType() << 1) | (e.getClass() == PElement.class ? 1 : 0));
+            Integer parent = e.getParent() != null ? indexes.get(e.getParent()) : null;
+            out.writeVarint(parent != null ? parent + 1 : 0);
+            out.writeSigned(e.getOffset() - lastOffset);
+            lastOffset = e.getOffset();
+            writeScalars(e, out);
+        }
+        for (PElement e : nodes) {
+            writeReferences(e, out, indexes);
+        }
+        return out.toByteArray();
+    }
+
+    private static void collect(PElement element, List<PElement> nodes, Map<PElement, Integer> indexes) {
+        indexes.put(element, nodes.size());
+        nodes.add(element);
+        for (PElement ch : element.getChildren()) {
+            collect(ch, nodes, indexes);
+        }
+    }
+
+    private static void writeScalars(PElement e, Output out) {
+        if (e.getClass() == PElement.class) {
+            return;
+        }
+        switch (e.getType()) {
+            case PElement.BLOB:
+                out.writeSigned(e.getEndOffset() - e.getOffset());
+                break;
+            case PElement.CLASS_PARAM:
+                out.writeString(((PClassParam) e).getTypeType());
+                break;
+            case PElement.VARIABLE:
+                out.writeString(((PVariable) e).getName());
+                break;
+            case PElement.VARIABLE_DEFINITION:
+                out.writeString(((PVariableDefinition) e).getName());
+                break;
+            case PElement.FUNCTION:
+                out.writeString(((PFunction) e).getName());
+                break;
+            case PElement.IDENTIFIER:
+                out.writeString(((PIdentifier) e).getName());
+                break;
+            case PElement.STRING:
+                out.writeString(((PString) e).getValue());
+                break;
+            case PElement.RESOURCE_ATTR:
+                out.writeString(((PResourceAttribute) e).getName());
+                break;
+            case PElement.RESOURCE:
+                out.writeString(((PResource) e).getResourceType());
+                break;
+            case PElement.REFERENCE:
+                out.writeString(((PTypeReference) e).getResourceType());
+                break;
+            case PElement.DEFINE:
+                PDefine def = (PDefine) e;
+                out.writeString(def.getName());
+                out.writeSigned(def.getNameOffset() - def.getOffset());
+                break;
+            case PElement.COLLECTOR:
+                PCollector collector = (PCollector) e;
+                out.writeString(collector.getResourceType());
+                out.writeVarint(collector.isExported() ? 1 : 0);
+                break;
+            case PElement.RELATIONSHIP:
+                out.writeVarint(((PRelationship) e).isNotify() ? 1 : 0);
+                break;
+            case PElement.NODE:
+                String[] names = ((PNode) e).getNames();
+                out.writeVarint(names != null ? names.length + 1 : 0);
+                if (names != null) {
+                    for (String n : names) {
+                        out.writeString(n);
+                    }
+                }
+                break;
+            default:
+        }
+    }
+
+    /**
+     * elements the given one refers to, used to find detached subtrees
+     */
+    private static void references(PElement e, List<PElement> refs) {
+        if (e instanceof PClass) {
+            PClass c = (PClass) e;
+            refs.add(c.getNameIdentifier());
+            refs.add(c.getInherits());
+            refs.addAll(Arrays.asList(c.getParams()));
+        } else if (e instanceof PDefine) {
+            refs.addAll(Arrays.asList(((PDefine) e).getParams()));
+        } else if (e instanceof PLambda) {
+            PLambda l = (PLambda) e;
+            refs.addAll(Arrays.asList(l.getParams()));
+            refs.add(l.getBody());
+        } else if (e instanceof PCollector) {
+            refs.add(((PCollector) e).getQuery());
+        } else if (e instanceof PRelationship) {
+            PRelationship r = (PRelationship) e;
+            refs.add(r.getLeft());
+            refs.add(r.getRight());
+        } else if (e instanceof PClassRef) {
+            refs.add(((PClassRef) e).getNameIdentifier());
+        } else if (e instanceof PClassParam) {
+            PClassParam p = (PClassParam) e;
+            refs.add(p.getVariableDefinition());
+            refs.add(p.getDefaultValue());
+        } else if (e instanceof PResource) {
+            PResource r = (PResource) e;
+            refs.add(r.getTitle());
+            refs.addAll(r.getAtributes());
+        } else if (e instanceof PResourceAttribute) {
+            refs.add(((PResourceAttribute) e).getValue());
+        } else if (e instanceof PTypeReference) {
+            refs.add(((PTypeReference) e).getTitle());
+        } else if (e instanceof PCase) {
+            PCase c = (PCase) e;
+            refs.add(c.getControl());
+            for (Map.Entry<PBlob, PBlob> entry : c.getCases().entrySet()) {
+                refs.add(entry.getKey());
+                refs.add(entry.getValue());
+            }
+        } else if (e instanceof PCondition) {
+            PCondition c = (PCondition) e;
+            refs.add(c.getCondition());
+            refs.add(c.getConsequence());
+            refs.add(c.getOtherwise());
+        }
+    }
+
+    /**
+     * same order as {@link #readReferences(com.tropyx.nb_puppet.parser.PElement, com.tropyx.nb_puppet.parser.PElement[], com.tropyx.nb_puppet.parser.PElementSerializer.Input) }
+     */
+    private static void writeReferences(PElement e, Output out, Map<PElement, Integer> indexes) {
+        if (e instanceof PClass) {
+            PClass c = (PClass) e;
+            writeRef(c.getNameIdentifier(), out, indexes);
+            writeRef(c.getInherits(), out, indexes);
+            writeRefs(Arrays.<PElement>asList(c.getParams()), out, indexes);
+        } else if (e instanceof PDefine) {
+            writeRefs(Arrays.<PElement>asList(((PDefine) e).getParams()), out, indexes);
+        } else if (e instanceof PLambda) {
+            PLambda l = (PLambda) e;
+            writeRefs(Arrays.<PElement>asList(l.getParams()), out, indexes);
+            writeRef(l.getBody(), out, indexes);
+        } else if (e instanceof PCollector) {
+            writeRef(((PCollector) e).getQuery(), out, indexes);
+        } else if (e instanceof PRelationship) {
+            PRelationship r = (PRelationship) e;
+            writeRef(r.getLeft(), out, indexes);
+            writeRef(r.getRight(), out, indexes);
+        } else if (e instanceof PClassRef) {
+            writeRef(((PClassRef) e).getNameIdentifier(), out, indexes);
+        } else if (e instanceof PClassParam) {
+            PClassParam p = (PClassParam) e;
+            writeRef(p.getVariableDefinition(), out, indexes);
+            writeRef(p.getDefaultValue(), out, indexes);
+        } else if (e instanceof PResource) {
+            PResource r = (PResource) e;
+            writeRef(r.getTitle(), out, indexes);
+            writeRefs(r.getAtributes(), out, indexes);
+        } else if (e instanceof PResourceAttribute) {
+            writeRef(((PResourceAttribute) e).getValue(), out, indexes);
+        } else if (e instanceof PTypeReference) {
+            writeRef(((PTypeReference) e).getTitle(), out, indexes);
+        } else if (e instanceof PCase) {
+            PCase c = (PCase) e;
+            writeRef(c.getControl(), out, indexes);
+            out.writeVarint(c.getCases().size());
+            for (Map.Entry<PBlob, PBlob> entry : c.getCases().entrySet()) {
+                writeRef(entry.getKey(), out, indexes);
+                writeRef(entry.getValue(), out, indexes);
+            }
+        } else if (e instanceof PCondition) {
+            PCondition c = (PCondition) e;
+            writeRef(c.getCondition(), out, indexes);
+            writeRef(c.getConsequence(), out, indexes);
+            writeRef(c.getOtherwise(), out, indexes);
+        }
+    }
+
+    private static void writeRef(PElement ref, Output out, Map<PElement, Integer> indexes) {
+        out.writeVarint(ref != null ? indexes.get(ref) + 1 : 0);
+    }
+
+    private static void writeRefs(List<? extends PElement> refs, Output out, Map<PElement, Integer> indexes) {
+        out.writeVarint(refs.size());
+        for (PElement ref : refs) {
+            writeRef(ref, out, indexes);
+        }
+    }
+
+    /**
+     * @throws IOException when the data is not a tree written by the current format
+     */
+    static PElement read(ByteBuffer buffer) throws IOException {
+        try {
+            Input in = new Input(buffer);
+            if (in.readInt() != MAGIC || in.readVarint() != FORMAT_VERSION) {
+                throw new IOException("Unknown format");
+            }
+            int count = in.readSize();
+            PElement[] nodes = new PElement[count];
+            int lastOffset = 0;
+            for (int i = 0; i < count; i++) {
+                int kind = in.readVarint();
+                int parentIndex = in.readVarint();
+                PElement parent = parentIndex > 0 ? nodes[parentIndex - 1] : null;
+                int offset = lastOffset + in.readSigned();
+                lastOffset = offset;
+                nodes[i] = create(kind >>> 1, (kind & 1) == 1, parent, offset, in);
+            }
+            for (PElement node : nodes) {
+                readReferences(node, nodes, in);
+            }
+            return count > 0 ? nodes[0] : null;
+        } catch (RuntimeException ex) {
+            //underflow, bad casts and indexes, setters rejecting the values, all mean corrupted data
+            throw new IOException("Corrupted tree", ex);
+        }
+    }
+
+    private static PElement create(int type, boolean plain, PElement parent, int offset, Input in) throws IOException {
+        if (plain) {
+            return new PElement(type, parent, offset);
+        }
+        switch (type) {
+            case PElement.BLOB:
+                PBlob blob = new PBlob(parent, offset);
+                blob.setEndOffset(offset + in.readSigned());
+                return blob;
+            case PElement.CLASS_PARAM:
+                PClassParam param = new PClassParam(parent, offset);
+                param.setTypeType(in.readString());
+                return param;
+            case PElement.VARIABLE:
+                return new PVariable(parent, offset, in.readString());
+            case PElement.VARIABLE_DEFINITION:
+                return new PVariableDefinition(parent, offset, in.readString());
+            case PElement.FUNCTION:
+                return new PFunction(parent, offset, in.readString());
+            case PElement.IDENTIFIER:
+                return new PIdentifier(parent, offset, in.readString());
+            case PElement.STRING:
+                return PString.restore(parent, offset, in.readString());
+            case PElement.RESOURCE_ATTR:
+                return new PResourceAttribute(parent, offset, in.readString());
+            case PElement.RESOURCE:
+                return new PResource(parent, offset, in.readString());
+            case PElement.REFERENCE:
+                return new PTypeReference(parent, offset, in.readString());
+            case PElement.DEFINE:
+                PDefine def = new PDefine(parent, offset);
+                String name = in.readString();
+                def.setName(name, offset + in.readSigned());
+                return def;
+            case PElement.NODE:
+                PNode node = new PNode(parent, offset);
+                int size = in.readVarint();
+                if (size > 0) {
+                    String[] names = new String[size - 1];
+                    for (int i = 0; i < names.length; i++) {
+                        names[i] = in.readString();
+                    }
+                    node.setNames(names);
+                }
+                return node;
+            case PElement.CLASS:
+                return new PClass(parent, offset);
+            case PElement.CLASS_REF:
+                return new PClassRef(parent, offset);
+            case PElement.CASE:
+                return new PCase(parent, offset);
+            case PElement.CONDITION:
+                return new PCondition(parent, offset);
+            case PElement.LAMBDA:
+                return new PLambda(parent, offset);
+            case PElement.COLLECTOR:
+                return new PCollector(parent, offset, in.readString(), in.readVarint() == 1);
+            case PElement.RELATIONSHIP:
+                return new PRelationship(parent, offset, in.readVarint() == 1);
+            default:
+                throw new IOException("Unknown element type " + type);
+        }
+    }
+
+    private static void readReferences(PElement e, PElement[] nodes, Input in) throws IOException {
+        if (e instanceof PClass) {
+            PClass c = (PClass) e;
+            c.setName((PIdentifier) ref(nodes, in));
+            c.setInherits((PClassRef) ref(nodes, in));
+            c.setParams(readParams(nodes, in));
+        } else if (e instanceof PDefine) {
+            ((PDefine) e).setParams(readParams(nodes, in));
+        } else if (e instanceof PLambda) {
+            PLambda l = (PLambda) e;
+            l.setParams(readParams(nodes, in));
+            l.setBody((PBlob) ref(nodes, in));
+        } else if (e instanceof PCollector) {
+            ((PCollector) e).setQuery((PBlob) ref(nodes, in));
+        } else if (e instanceof PRelationship) {
+            PRelationship r = (PRelationship) e;
+            r.setLeft(ref(nodes, in));
+            r.setRight(ref(nodes, in));
+        } else if (e instanceof PClassRef) {
+            ((PClassRef) e).setName((PIdentifier) ref(nodes, in));
+        } else if (e instanceof PClassParam) {
+            PClassParam p = (PClassParam) e;
+            p.setVariableDefinition((PVariableDefinition) ref(nodes, in));
+            p.setDefaultValue(ref(nodes, in));
+        } else if (e instanceof PResource) {
+            PResource r = (PResource) e;
+            r.setTitle(ref(nodes, in));
+            int size = in.readVarint();
+            for (int i = 0; i < size; i++) {
+                r.addAttribute((PResourceAttribute) ref(nodes, in));
+            }
+        } else if (e instanceof PResourceAttribute) {
+            ((PResourceAttribute) e).setValue(ref(nodes, in));
+        } else if (e instanceof PTypeReference) {
+            ((PTypeReference) e).setTitle(ref(nodes, in));
+        } else if (e instanceof PCase) {
+            PCase c = (PCase) e;
+            c.setControl((PBlob) ref(nodes, in));
+            int size = in.readVarint();
+            for (int i = 0; i < size; i++) {
+                c.addCase((PBlob) ref(nodes, in), (PBlob) ref(nodes, in));
+            }
+        } else if (e instanceof PCondition) {
+            PCondition c = (PCondition) e;
+            c.setCondition((PBlob) ref(nodes, in));
+            c.setConsequence((PBlob) ref(nodes, in));
+            c.setOtherwise(ref(nodes, in));
+        }
+    }
+
+    private static PClassParam[] readParams(PElement[] nodes, Input in) throws IOException {
+        PClassParam[] params = new PClassParam[in.readSize()];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = (PClassParam) ref(nodes, in);
+        }
+        return params;
+    }
+
+    private static PElement ref(PElement[] nodes, Input in) throws IOException {
+        int index = in.readVarint();
+        return index > 0 ? nodes[index - 1] : null;
+    }
+
+    private static final class Output {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        void writeInt(int value) {
+            bytes.write(value >>> 24);
+            bytes.write(value >>> 16);
+            bytes.write(value >>> 8);
+            bytes.write(value);
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                bytes.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes.write(value);
+        }
+
+        void writeSigned(int value) {
+            //zigzag, small negative numbers stay short
+            writeVarint((value << 1) ^ (value >> 31));
+        }
+
+        /**
+         * 0 is null, known strings are written as their id, a new string as next id followed by UTF-8 bytes
+         */
+        void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            Integer id = strings.get(value);
+            if (id != null) {
+                writeVarint(id);
+                return;
+            }
+            id = strings.size() + 1;
+            strings.put(value, id);
+            writeVarint(id);
+            byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(data.length);
+            bytes.write(data, 0, data.length);
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    private static final class Input {
+        private final ByteBuffer buffer;
+        private final List<String> strings = new ArrayList<>();
+
+        Input(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int readInt() {
+            return buffer.getInt();
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        /**
+         * length of an array, every element takes at least a byte so it cannot exceed the remaining data
+         */
+        int readSize() throws IOException {
+            int size = readVarint();
+            if (size < 0 || size > buffer.remaining()) {
+                throw new IOException("Malformed size " + size);
+            }
+            return size;
+        }
+
+        int readSigned() throws IOException {
+            int value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() throws IOException {
+            int id = readVarint();
+            if (id == 0) {
+                return null;
+            }
+            if (id <= strings.size()) {
+                return strings.get(id - 1);
+            }
+            if (id != strings.size() + 1) {
+                throw new IOException("Malformed string table");
+            }
+            byte[] data = new byte[readSize()];
+            buffer.get(data);
+            String value = new String(data, StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+    }
+}
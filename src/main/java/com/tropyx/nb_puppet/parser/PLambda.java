@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.parser;
+
+/**
+ * block passed to a function, eg. <code>$list.each |$k, $v| { }</code>, child of the {@link PFunction}.
+ * Parameters and variables of the body are local to the lambda.
+ */
+public class PLambda extends PElement implements PParamContainer {
+    private PClassParam[] params = new PClassParam[0];
+    private PBlob body;
+
+    public PLambda(PElement parent, int offset) {
+        super(LAMBDA, parent, offset);
+    }
+
+    @Override
+    public PClassParam[] getParams() {
+        return params;
+    }
+
+    @Override
+    public void setParams(PClassParam[] params) {
+        assert params != null;
+        this.params = params;
+    }
+
+    public PBlob getBody() {
+        return body;
+    }
+
+    void setBody(PBlob body) {
+        this.body = body;
+    }
+
+}
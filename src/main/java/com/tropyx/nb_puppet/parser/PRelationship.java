@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.parser;
+
+/**
+ * ordering <code>-&gt;</code> or notifying <code>~&gt;</code> arrow, at the offset of the arrow.
+ * The operands (resources, references, collectors) are its preceding and following siblings,
+ * a chain <code>A -&gt; B ~&gt; C</code> is two relationships sharing B.
+ */
+public class PRelationship extends PElement {
+
+    private final boolean notify;
+    private PElement left;
+    private PElement right;
+
+    public PRelationship(PElement parent, int offset, boolean notify) {
+        super(RELATIONSHIP, parent, offset);
+        this.notify = notify;
+    }
+
+    /**
+     * @return true for ~&gt;
+     */
+    public boolean isNotify() {
+        return notify;
+    }
+
+    /**
+     * @return the element applied first, null if the operand is not an element (eg. a literal)
+     */
+    public PElement getLeft() {
+        return left;
+    }
+
+    void setLeft(PElement left) {
+        this.left = left;
+    }
+
+    /**
+     * @return the element applied second, null if the operand is not an element (eg. a literal)
+     */
+    public PElement getRight() {
+        return right;
+    }
+
+    void setRight(PElement right) {
+        this.right = right;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "[" + (notify ? "~>" : "->") + "]";
+    }
+}
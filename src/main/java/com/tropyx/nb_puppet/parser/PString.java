@@ -17,35 +17,78 @@
 
 package com.tropyx.nb_puppet.parser;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import com.tropyx.nb_puppet.lexer.PLangHierarchy;
+import com.tropyx.nb_puppet.lexer.PStringTokenId;
+import com.tropyx.nb_puppet.lexer.PTokenId;
+import org.netbeans.api.lexer.Language;
+import org.netbeans.api.lexer.Token;
+import org.netbeans.api.lexer.TokenHierarchy;
+import org.netbeans.api.lexer.TokenSequence;
 
 public class PString extends PElement {
+    private static final Language<PTokenId> LANGUAGE = new PLangHierarchy().language();
     private final String value;
-    final static Pattern VAR = Pattern.compile("\\$\\{([a-zA-Z_:]+?)\\}");
-    
+
+    /**
+     * lexes the value on its own, the parser passes the embedded tokens of the document instead
+     */
     public PString(PElement parent, int offset, String value) {
+        this(parent, offset, value, null);
+        if (value.length() > 2 && value.startsWith("\"")) {
+            TokenSequence<PTokenId> ts = TokenHierarchy.create(value, LANGUAGE).tokenSequence(LANGUAGE);
+            if (ts.moveNext()) {
+                addVariables(this, ts.embedded(PStringTokenId.language()), offset);
+            }
+        }
+    }
+
+    /**
+     * @param embedded tokens of the string, with document offsets
+     */
+    PString(PElement parent, int offset, String value, TokenSequence<PStringTokenId> embedded) {
         super(STRING, parent, offset);
-        if (value.length() == 2) {
-            this.value = "";
+        if (value.length() > 1 && (value.startsWith("\"") && value.endsWith("\"")
+                || value.startsWith("'") && value.endsWith("'"))) {
+            this.value = value.substring(1, value.length() - 1);
         } else {
-            if (value.startsWith("\"") && value.endsWith("\"")) {
-                Matcher m = VAR.matcher(value);
-                while (m.find()) {
-                    String var = m.group(1);
-                    //+1 for the ${ character
-                    new PVariable(this, offset + m.start() + 1, "$" + var);
+            this.value = "";
+        }
+        addVariables(this, embedded, 0);
+    }
+
+    /**
+     * the name following ${ is placed at the { to cover as many chars as the $name
+     */
+    static void addVariables(PElement parent, TokenSequence<PStringTokenId> embedded, int shift) {
+        if (embedded == null) {
+            return;
+        }
+        embedded.moveStart();
+        while (embedded.moveNext()) {
+            Token<PStringTokenId> token = embedded.token();
+            if (token.id() == PStringTokenId.VARIABLE) {
+                String name = token.text().toString();
+                if (name.startsWith("$")) {
+                    new PVariable(parent, shift + embedded.offset(), name);
+                } else {
+                    new PVariable(parent, shift + embedded.offset() - 1, "$" + name);
                 }
-                this.value = value.substring(1, value.length() - 1);
-            }
-            else if (value.startsWith("'") && value.endsWith("'")) {
-                this.value = value.substring(1, value.length() - 1);
-            } else {
-                this.value = "";
             }
         }
     }
 
+    /**
+     * for {@link PElementSerializer}, value is already unquoted and the variables are restored as children
+     */
+    private PString(PElement parent, int offset, String value, boolean restored) {
+        super(STRING, parent, offset);
+        this.value = value;
+    }
+
+    static PString restore(PElement parent, int offset, String value) {
+        return new PString(parent, offset, value, true);
+    }
+
     public String getValue() {
         return value;
     }
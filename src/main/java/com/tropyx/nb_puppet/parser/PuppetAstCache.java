@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.parser;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.netbeans.api.queries.FileEncodingQuery;
+import org.openide.filesystems.FileObject;
+import org.openide.modules.Places;
+import org.openide.util.RequestProcessor;
+
+/**
+ * On disk cache of parsed trees for files that are not open in the editor.
+ * Trees are stored in {@link PElementSerializer} format, one file per content hash and parser version,
+ * so unchanged files (vendored modules) are never parsed again, even across IDE restarts.
+ * Cached trees are loaded through a memory mapped buffer. The last modification time of an entry is its last use,
+ * once per session entries unused for {@link #MAX_AGE} are deleted and the rest trimmed to {@link #MAX_SIZE}.
+ */
+public final class PuppetAstCache {
+
+    private static final Logger LOG = Logger.getLogger(PuppetAstCache.class.getName());
+    private static final String CACHE_DIR = "puppet/ast";
+    private static final RequestProcessor RP = new RequestProcessor(PuppetAstCache.class);
+    static final long MAX_AGE = TimeUnit.DAYS.toMillis(30);
+    static final long MAX_SIZE = 256L * 1024 * 1024;
+    /**
+     * last use is only recorded when older than this, not to write on every load
+     */
+    private static final long TOUCH_INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+    private static File cacheDir;
+
+    private PuppetAstCache() {
+    }
+
+    /**
+     * @return tree of the file's saved content, from the cache if the content was parsed before
+     */
+    public static PElement getRoot(FileObject fo) throws IOException {
+        return getRoot(fo, fo.asBytes());
+    }
+
+    /**
+     * @param content saved content of the file, for callers that need the bytes themselves
+     */
+    public static PElement getRoot(FileObject fo, byte[] content) throws IOException {
+        File cached = new File(getCacheDir(), key(content) + ".ast");
+        PElement root = load(cached);
+        if (root == null) {
+            root = PuppetParserEngine.parse(new String(content, FileEncodingQuery.getEncoding(fo)));
+            store(cached, root);
+        }
+        root.freeze();
+        return root;
+    }
+
+    private static PElement load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            PElement root = PElementSerializer.read(buffer);
+            long now = System.currentTimeMillis();
+            if (now - file.lastModified() > TOUCH_INTERVAL) {
+                file.setLastModified(now);
+            }
+            return root;
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Discarding unreadable " + file, ex);
+            if (!file.delete()) {
+                LOG.log(Level.FINE, "Cannot delete {0}", file);
+            }
+            return null;
+        }
+    }
+
+    private static void store(File file, PElement root) {
+        File tmp = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(PElementSerializer.write(root));
+            }
+            if (!tmp.renameTo(file) && !file.isFile()) {
+                LOG.log(Level.FINE, "Cannot store {0}", file);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Cannot store " + file, ex);
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                LOG.log(Level.FINE, "Cannot delete {0}", tmp);
+            }
+        }
+    }
+
+    /**
+     * hash of the content together with parser and format version, a parser change
+     * makes all previously stored trees unreachable.
+     */
+    static String key(byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        digest.update((byte) PuppetParserEngine.VERSION);
+        digest.update((byte) PElementSerializer.FORMAT_VERSION);
+        byte[] hash = digest.digest(content);
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    static synchronized File getCacheDir() {
+        if (cacheDir == null) {
+            final File dir = Places.getCacheSubdirectory(CACHE_DIR);
+            cacheDir = dir;
+            RP.post(new Runnable() {
+                @Override
+                public void run() {
+                    evict(dir, System.currentTimeMillis());
+                }
+            });
+        }
+        return cacheDir;
+    }
+
+    /**
+     * deletes entries older than {@link #MAX_AGE}, then the least recently used ones until the rest fits {@link #MAX_SIZE}
+     */
+    static void evict(File dir, long now) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        long size = 0;
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+            size += files[i].length();
+        }
+        //newest first, the oldest are deleted from the end
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(modified[o2], modified[o1]);
+            }
+        });
+        for (int i = order.length - 1; i >= 0; i--) {
+            File file = files[order[i]];
+            if (size <= MAX_SIZE && now - modified[order[i]] <= MAX_AGE) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            } else {
+                LOG.log(Level.FINE, "Cannot delete {0}", file);
+            }
+        }
+    }
+
+    /**
+     * for tests
+     */
+    static synchronized void setCacheDir(File dir) {
+        cacheDir = dir;
+    }
+
+}
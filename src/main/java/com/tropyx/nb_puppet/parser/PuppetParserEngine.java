@@ -0,0 +1,984 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.tropyx.nb_puppet.parser;
+
+import com.tropyx.nb_puppet.lexer.PLangHierarchy;
+import com.tropyx.nb_puppet.lexer.PStringTokenId;
+import com.tropyx.nb_puppet.lexer.PTokenId;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.netbeans.api.annotations.common.NonNull;
+import org.netbeans.api.annotations.common.NullAllowed;
+import org.netbeans.api.lexer.Language;
+import org.netbeans.api.lexer.Token;
+import org.netbeans.api.lexer.TokenHierarchy;
+import org.netbeans.api.lexer.TokenSequence;
+
+/**
+ * The puppet grammar, builds the PElement tree from a PTokenId token sequence.
+ * Doesn't depend on the parsing api, so can be used outside of the IDE via {@link #parse(java.lang.CharSequence) },
+ * {@link PuppetParser} is the adapter for the NetBeans parsing infrastructure.
+ * Instances are not thread safe, use one per thread.
+ */
+public final class PuppetParserEngine {
+
+    /**
+     * bump whenever the produced tree changes, invalidates trees cached by {@link PuppetAstCache}
+     */
+    public static final int VERSION = 4;
+
+    //stop token sets for collectText and fastForward, EnumSet.contains is a single bit test
+    private static final Set<PTokenId> STOP_NAME = EnumSet.of(PTokenId.WHITESPACE, PTokenId.LBRACE, PTokenId.LPAREN);
+    private static final Set<PTokenId> STOP_RBRACE = EnumSet.of(PTokenId.RBRACE);
+    private static final Set<PTokenId> STOP_LBRACE = EnumSet.of(PTokenId.LBRACE);
+    private static final Set<PTokenId> STOP_RBRACKET = EnumSet.of(PTokenId.RBRACKET);
+    private static final Set<PTokenId> STOP_RPAREN = EnumSet.of(PTokenId.RPAREN);
+    private static final Set<PTokenId> STOP_COLON = EnumSet.of(PTokenId.COLON);
+    private static final Set<PTokenId> STOP_PARAM = EnumSet.of(PTokenId.RPAREN, PTokenId.COMMA);
+    private static final Set<PTokenId> STOP_LAMBDA_PARAM = EnumSet.of(PTokenId.PIPE, PTokenId.COMMA);
+    private static final Set<PTokenId> STOP_COLLECTOR = EnumSet.of(PTokenId.RCOLLECTOR, PTokenId.REXPORTCOLLECTOR);
+    private static final Set<PTokenId> STOP_ATTRIBUTE = EnumSet.of(PTokenId.COMMA, PTokenId.RBRACE);
+    //resource like class { 'name': } is a statement, see isClassDefinition
+    private static final Set<PTokenId> STOP_TOPLEVEL = EnumSet.of(PTokenId.CLASS, PTokenId.NODE, PTokenId.DEFINE);
+    //heredoc bodies follow on the line after the tag, they are placed in the tree once it's complete
+    private static final Set<PTokenId> SKIPPED = EnumSet.of(PTokenId.WHITESPACE, PTokenId.COMMENT, PTokenId.LINE_COMMENT,
+            PTokenId.HEREDOC_BODY, PTokenId.INTERPOLATED_HEREDOC_BODY);
+
+    private static final Language<PTokenId> LANGUAGE = new PLangHierarchy().language();
+
+    private final AtomicBoolean cancelled;
+    /**
+     * interpolated heredoc bodies of the current parse, without parent until {@link #placeHeredocBodies(com.tropyx.nb_puppet.parser.PElement) }
+     */
+    private final List<PBlob> heredocBodies = new ArrayList<>();
+
+    public PuppetParserEngine() {
+        this(new AtomicBoolean());
+    }
+
+    /**
+     * @param cancelled flag checked during parsing, owned by the caller
+     */
+    PuppetParserEngine(AtomicBoolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Lexes and parses the given text without the IDE infrastructure.
+     * @param text content of a manifest
+     * @return root element of the tree
+     */
+    public static PElement parse(CharSequence text) {
+        TokenSequence<PTokenId> ts = TokenHierarchy.create(text, LANGUAGE).tokenSequence(LANGUAGE);
+        PElement root = new PElement(PElement.ROOT, null, 0);
+        new PuppetParserEngine().parse(ts, root);
+        return root;
+    }
+
+    /**
+     * requests the running parse to stop, see {@link #parse(org.netbeans.api.lexer.TokenSequence, com.tropyx.nb_puppet.parser.PElement) }
+     */
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    /**
+     * Parses the whole token sequence into given root. Clears any previous cancel request.
+     * @param ts token sequence of the entire file
+     * @param root element to add the top level elements to
+     * @return false if the parse was cancelled and root contains only partial tree
+     */
+    public boolean parse(TokenSequence<PTokenId> ts, PElement root) {
+        cancelled.set(false);
+        return doParse(ts, root);
+    }
+
+    boolean doParse(TokenSequence<PTokenId> ts, PElement root) {
+        ts.moveStart();
+        heredocBodies.clear();
+        try {
+            Token<PTokenId> token = nextSkipWhitespaceComment(ts);
+            while (token != null && ts.isValid()) {
+                if (isDefinition(ts, token)) {
+                    parseTopLevel(root, ts, token);
+                    token = nextSkipWhitespaceComment(ts);
+                } else {
+                    token = parseTopLevelStatements(root, ts);
+                }
+            }
+        } catch (ParseCancelledException ex) {
+            return false;
+        }
+        placeHeredocBodies(root);
+        return true;
+    }
+
+    /**
+     * statements outside of class, define and node (eg. site.pp) go to a blob under root,
+     * up to the next definition
+     * @return the token starting the next definition, null at the end of file
+     */
+    private Token<PTokenId> parseTopLevelStatements(PElement root, TokenSequence<PTokenId> ts) {
+        PBlob blob = new PBlob(root, ts.offset());
+        Token<PTokenId> stop = fastForwardToStop(blob, ts, STOP_TOPLEVEL, true);
+        int index = ts.index();
+        if (stop != null) {
+            ts.movePrevious();
+        }
+        //the blob ends with its last statement, not with the whitespace or comments before the next one
+        if (backoffWhitespaceComment(ts) != null) {
+            blob.setEndOffset(ts.offset() + ts.token().length());
+        }
+        ts.moveIndex(index);
+        ts.moveNext();
+        return stop;
+    }
+
+    private boolean isDefinition(TokenSequence<PTokenId> ts, Token<PTokenId> token) {
+        return STOP_TOPLEVEL.contains(token.id()) && (token.id() != PTokenId.CLASS || isClassDefinition(ts));
+    }
+
+    /**
+     * class name {} as opposed to the resource like class { 'name': }, leaves ts at the class keyword
+     */
+    private boolean isClassDefinition(TokenSequence<PTokenId> ts) {
+        int index = ts.index();
+        Token<PTokenId> next = nextSkipWhitespaceComment(ts);
+        ts.moveIndex(index);
+        ts.moveNext();
+        return next != null && next.id() == PTokenId.IDENTIFIER;
+    }
+
+    private void parseTopLevel(PElement root, TokenSequence<PTokenId> ts, Token<PTokenId> token) {
+        if (token.id() == PTokenId.CLASS) {
+            parseClass(root, ts);
+        }
+        else if (token.id() == PTokenId.NODE) {
+            parseNode(root, ts);
+        } else if (token.id() == PTokenId.DEFINE) {
+            parseDefine(root, ts);
+        }
+    }
+
+    /**
+     * Reparses just the top level class/define/node that encloses the modified
+     * region and splices it into a new tree, the remaining top level
+     * elements of the previous tree are moved over, the ones after the modification shifted by the length difference.
+     * Offsets are relative to the parent, so the work is proportional to the reparsed element and the number
+     * of top level elements. The previous tree gives up its subtrees, its result is superseded by the new one
+     * (the parsing infrastructure invalidates it). Nothing is moved when null is returned.
+     * @param previousRoot root of the previous parse of the same file
+     * @param ts token sequence of the modified file
+     * @param delta difference between current and previous length of the file
+     * @param start affected start offset as reported by the modification event
+     * @param end affected end offset as reported by the modification event
+     * @return new root or null when the modification cannot be handled incrementally
+     * and a full parse is required.
+     */
+    PElement reparse(PElement previousRoot, TokenSequence<PTokenId> ts, int delta, int start, int end) {
+        if (start < 0 || end < start) {
+            return null;
+        }
+        //end offset before the modification, for insertions it's the start, for removals past the removed text
+        int oldEnd = Math.max(start, end - delta);
+        List<PElement> oldChildren = previousRoot.getChildren();
+        int index = -1;
+        for (int i = 0; i < oldChildren.size(); i++) {
+            PElement ch = oldChildren.get(i);
+            if (ch.getOffset() >= start) {
+                break;
+            }
+            // the modification has to be strictly inside, not touching the closing brace
+            if (oldEnd < ch.getEndOffset() - 1) {
+                index = i;
+                break;
+            }
+        }
+        if (index == -1) {
+            return null;
+        }
+        PElement changed = oldChildren.get(index);
+        if (!changed.isType(PElement.CLASS) && !changed.isType(PElement.DEFINE) && !changed.isType(PElement.NODE)) {
+            return null;
+        }
+        ts.move(changed.getOffset());
+        if (!ts.moveNext() || ts.offset() != changed.getOffset()) {
+            return null;
+        }
+        Token<PTokenId> token = ts.token();
+        if (token == null) {
+            return null;
+        }
+        PElement scratch = new PElement(PElement.ROOT, null, 0);
+        heredocBodies.clear();
+        try {
+            parseTopLevel(scratch, ts, token);
+        } catch (ParseCancelledException ex) {
+            return null;
+        }
+        placeHeredocBodies(scratch);
+        if (scratch.getChildren().size() != 1) {
+            return null;
+        }
+        PElement replacement = scratch.getChildren().get(0);
+        if (replacement.getType() != changed.getType() || replacement.getEndOffset() != changed.getEndOffset() + delta) {
+            //the edit changed the structure beyond the enclosing element
+            return null;
+        }
+        final PElement root = new PElement(PElement.ROOT, null, 0);
+        for (int i = 0; i < oldChildren.size(); i++) {
+            PElement child = i == index ? replacement : oldChildren.get(i);
+            child.reparent(root);
+            if (i > index) {
+                child.shift(delta);
+            }
+        }
+        return root;
+    }
+
+    private Token<PTokenId> skipWhitespaceComment(TokenSequence<PTokenId> ts) {
+        while (ts.token() != null && SKIPPED.contains(ts.token().id()))
+        {
+            if (!ts.moveNext()) {
+                return null;
+            }
+        }
+        return ts.token();
+    }
+
+    private Token<PTokenId> nextSkipWhitespaceComment(TokenSequence<PTokenId> ts) {
+        //all the parsing loops advance through here, the only place to check for cancellation
+        if (cancelled.get()) {
+            throw new ParseCancelledException();
+        }
+        if (!ts.moveNext()) {
+            return null;
+        }
+        return skipWhitespaceComment(ts);
+    }
+    private Token<PTokenId> backoffWhitespaceComment(TokenSequence<PTokenId> ts) {
+        while (ts.token() != null && SKIPPED.contains(ts.token().id()))
+        {
+            if (!ts.movePrevious()) {
+                return null;
+            }
+        }
+        return ts.token();
+    }
+
+    private Token<PTokenId> prevBackoffWhitespaceComment(TokenSequence<PTokenId> ts) {
+        if (!ts.movePrevious()) {
+            return null;
+        }
+        return backoffWhitespaceComment(ts);
+    }
+
+    private String collectText(TokenSequence<PTokenId> ts, Set<PTokenId> stops) {
+        StringBuilder name = new StringBuilder();
+        Token<PTokenId> token = ts.token();
+        while (token != null && !stops.contains(token.id())) {
+            name.append(token.text().toString());
+            ts.moveNext();
+            token = ts.token();
+        }
+        if (token == null) {
+            return null;
+        }
+        return name.toString();
+    }
+
+    private PBlob fastForward(@NullAllowed PElement parent, TokenSequence<PTokenId> ts, Set<PTokenId> stops) {
+        PBlob blob = new PBlob(parent, ts.offset());
+        return fastForwardImpl(blob, ts, stops);
+    }
+
+    private PBlob fastForwardImpl(@NonNull PBlob blob, TokenSequence<PTokenId> ts, Set<PTokenId> stops) {
+        fastForwardToStop(blob, ts, stops, false);
+        return blob;
+    }
+
+    /**
+     * @param topLevel class only stops when it starts a definition, not at the resource like class { 'name': }
+     * @return the stop token, ts is left at it, null when the tokens ran out
+     */
+    private Token<PTokenId> fastForwardToStop(@NonNull PBlob blob, TokenSequence<PTokenId> ts, Set<PTokenId> stops, boolean topLevel) {
+        Token<PTokenId> token = ts.token();
+        int braceCount = 0;
+        int bracketCount = 0;
+        int parenCount = 0;
+        boolean ignore = false;
+        //relationship waiting for its right operand, the first child added after it
+        PRelationship chain = null;
+        int chainChildren = 0;
+        int start = -1;
+        int lastStart;
+
+        while (token != null && (ignore || !stops.contains(token.id())
+                || (topLevel && token.id() == PTokenId.CLASS && !isClassDefinition(ts)))) {
+            lastStart = start;
+            start = ts.offset();
+            if (chain != null && lastStart > chain.getOffset()) {
+                //the operand after the arrow has been parsed
+                setRight(chain, blob, chainChildren);
+                chain = null;
+            }
+            if (null != token.id()) switch (token.id()) {
+                case LBRACE:
+                    braceCount++;
+                    break;
+                case RBRACE:
+                    braceCount--;
+                    break;
+                case LBRACKET:
+                    bracketCount++;
+                    break;
+                case RBRACKET:
+                    bracketCount--;
+                    break;
+                case LPAREN:
+                    parenCount++;
+                    break;
+                case RPAREN:
+                    parenCount--;
+                    break;
+                case STRING_LITERAL:
+                    String val = token.text().toString();
+                    int off = ts.offset();
+                    new PString(blob, off, val, ts.embedded(PStringTokenId.language()));
+                    break;
+                case HEREDOC:
+                    parseHeredoc(blob, ts);
+                    break;
+                case ORDER_ARROW:
+                case NOTIF_ARROW:
+                    List<PElement> children = blob.getChildren();
+                    PElement left = children.isEmpty() ? null : children.get(children.size() - 1);
+                    chain = new PRelationship(blob, ts.offset(), token.id() == PTokenId.NOTIF_ARROW);
+                    //only when created by the operand right before the arrow
+                    if (left != null && left.getOffset() >= lastStart && !left.isType(PElement.RELATIONSHIP)) {
+                        chain.setLeft(left);
+                    }
+                    chainChildren = children.size();
+                    break;
+                case VARIABLE:
+                    val = token.text().toString();
+                    off = ts.offset();
+                    token = nextSkipWhitespaceComment(ts);
+                    if (token != null && token.id() == PTokenId.EQUALS) {
+                        //variable definition;
+                        new PVariableDefinition(blob, off, val);
+                    } else if (token != null) {
+                        //variable usage
+                        new PVariable(blob, off, val);
+                        continue;
+                    }
+                    break;
+                case INCLUDE:
+                case REQUIRE:
+                case CONTAIN:
+                    //CONTAIN also should have Class['ref'], arrays + comma separated lists
+                    //TODO class + resource type values??
+                    // docs: You must use the class’s full name; relative names are not allowed. In addition to names in string form, you may also directly use Class and Resource Type values that are produced by the future parser’s resource and relationship expressions.
+                    int offs = ts.offset();
+                    String f = token.text().toString();
+                    token = nextSkipWhitespaceComment(ts);
+                    if (token == null) {
+                        break;
+                    }
+                    //TODO apparently can also be $variable??
+                    if (token.id() == PTokenId.IDENTIFIER) {
+                        parseReqList(new PFunction(blob, offs, f), ts);
+                        token = ts.token();
+                        continue;
+                    } else if (token.id() == PTokenId.LBRACKET) {
+                        token = nextSkipWhitespaceComment(ts);
+                        if (token == null || token.id() != PTokenId.IDENTIFIER) {
+                            break;
+                        }
+                        parseReqList(new PFunction(blob, offs, f), ts);
+                        token = ts.token();
+                        if (token != null && token.id() == PTokenId.RBRACKET) {
+                            break;
+                        } else {//error? it's not IDENT , or ]
+
+                        }
+                    }
+                    break;
+                case IDENTIFIER:
+                case CLASS:
+                    val = token.text().toString();
+                    if (token.id() == PTokenId.IDENTIFIER) {
+                        //check unknown functions
+                        off = ts.offset();
+                        String name = token.text().toString();
+                        if ("Class".equals(name)) {
+                            parseClassReference(ts, blob);
+                        }
+                        token = nextSkipWhitespaceComment(ts);
+                        if (token.id() == PTokenId.LPAREN) {
+                            ts.moveNext();
+                            PFunction function = new PFunction(blob, off, name);
+                            parseFunction(function, ts);
+                            parseLambda(function, ts);
+                            break;
+                        } else if (token.id() == PTokenId.LBRACKET && Character.isUpperCase(name.charAt(0))) {
+                            //TODO how is array access handled? eg. aa[1]? or will we always get just $aa[1]?
+                            ts.moveNext();
+                            parseTypeRef(new PTypeReference(blob, off, name), ts);
+                            break;
+                        } else if ((token.id() == PTokenId.LCOLLECTOR || token.id() == PTokenId.LEXPORTCOLLECTOR)
+                                && Character.isUpperCase(name.charAt(0))) {
+                            ts.moveNext();
+                            parseCollector(new PCollector(blob, off, name, token.id() == PTokenId.LEXPORTCOLLECTOR), ts);
+                            break;
+                        } else {
+                            token = prevBackoffWhitespaceComment(ts);
+                        }
+                    }
+                    if (bracketCount == 0 && parenCount == 0) {
+                        boolean isClass = token.id() == PTokenId.CLASS;
+                        off = ts.offset();
+                        token = nextSkipWhitespaceComment(ts);
+                        if (token != null && token.id() == PTokenId.LBRACE) {
+                            parseResource(blob, val, ts, off);
+                        } else if (isClass && token != null && token.id() == PTokenId.IDENTIFIER) {
+                            String name = token.text().toString();
+                            nextSkipWhitespaceComment(ts);
+                            final PClass pClass = new PClass(blob, off);
+                            parseClassInternal(pClass, new PIdentifier(pClass, ts.offset(), name), ts);
+                        } else if (token != null && token.id() == PTokenId.LBRACKET && Character.isUpperCase(val.charAt(0))) {
+    //                    parseReference(pc, val);
+                            continue; //for now, to properly eat LBRACKET
+                        } else {
+                            continue;
+                        }
+                    }
+                    break;
+                case CASE:
+                    parseCase(blob, ts);
+                    break;
+                case IF:
+                    parseIf(blob, ts, true);
+                    break;
+                case UNLESS:
+                    parseIf(blob, ts, false);
+                    break;
+                case DOT:
+                    ts.moveNext();
+                    token = ts.token();
+                    if (token != null
+                        && (token.id() == PTokenId.IDENTIFIER || PTokenId.Category.FUNCTION.equals(token.id().primaryCategory()))) {
+                        off = ts.offset();
+                        String func = token.text().toString();
+                        token = nextSkipWhitespaceComment(ts);
+                        PFunction ff = new PFunction(blob, off, func);
+                        if (token.id() == PTokenId.LPAREN) {
+                            ts.moveNext();
+                            parseFunction(ff, ts);
+                        } else {
+                            prevBackoffWhitespaceComment(ts); //backoff for non () functions
+                        }
+                        parseLambda(ff, ts);
+                    }
+                    break;
+                default:
+                    if (PTokenId.Category.FUNCTION.equals(token.id().primaryCategory())) {
+                        off = ts.offset();
+                        String func = token.text().toString();
+                        token = nextSkipWhitespaceComment(ts);
+                        if (token.id() == PTokenId.LPAREN) {
+                            ts.moveNext();
+                            parseFunction(new PFunction(blob, off, func), ts);
+                        } else {
+                            prevBackoffWhitespaceComment(ts); //backoff for non () functions, how to figure where they stop?
+                        }
+                    }
+            }
+
+            token = nextSkipWhitespaceComment(ts);
+            ignore = bracketCount > 0 || braceCount > 0 || parenCount > 0;
+        }
+        if (chain != null) {
+            setRight(chain, blob, chainChildren);
+        }
+        blob.setEndOffset(ts.offset() + (token != null ? token.length() : 0));
+        return token;
+    }
+
+    private static void setRight(PRelationship chain, PBlob blob, int childrenBefore) {
+        List<PElement> children = blob.getChildren();
+        if (children.size() > childrenBefore) {
+            chain.setRight(children.get(childrenBefore));
+        }
+    }
+
+    /**
+     * the heredoc body is on one of the next lines, an interpolated one gets a blob with its variables
+     * that is placed by {@link #placeHeredocBodies(com.tropyx.nb_puppet.parser.PElement) }.
+     * Leaves ts at the tag.
+     */
+    private PString parseHeredoc(PElement parent, TokenSequence<PTokenId> ts) {
+        int index = ts.index();
+        int offset = ts.offset();
+        String tag = ts.token().text().toString();
+        while (ts.moveNext()) {
+            PTokenId id = ts.token().id();
+            if (id == PTokenId.INTERPOLATED_HEREDOC_BODY) {
+                PBlob body = new PBlob(null, ts.offset());
+                body.setEndOffset(ts.offset() + ts.token().length());
+                PString.addVariables(body, ts.embedded(PStringTokenId.language()), 0);
+                heredocBodies.add(body);
+                break;
+            }
+            if (id == PTokenId.HEREDOC_BODY || id == PTokenId.HEREDOC) {
+                break;
+            }
+        }
+        ts.moveIndex(index);
+        ts.moveNext();
+        return new PString(parent, offset, tag, null);
+    }
+
+    /**
+     * the body lines are skipped by the statement they belong to, so the ranges of the tag's parents
+     * don't tell where the body goes. It's attached to the innermost element spanning it, to keep
+     * children within their parent's range.
+     */
+    private void placeHeredocBodies(PElement root) {
+        for (PBlob body : heredocBodies) {
+            PElement container = root.getChildAtOffset(body.getOffset());
+            while (container != root && container.getEndOffset() < body.getEndOffset()) {
+                container = container.getParent();
+            }
+            container.insertChild(body);
+        }
+        heredocBodies.clear();
+    }
+
+    //https://docs.puppetlabs.com/puppet/latest/reference/lang_defined_types.html
+    private void parseDefine(PElement root, TokenSequence<PTokenId> ts) {
+        PDefine pc = new PDefine(root, ts.offset());
+        Token<PTokenId> token;
+        if (null == nextSkipWhitespaceComment(ts)) {
+            return;
+        }
+        int nameOffset = ts.offset();
+        String name = collectText(ts, STOP_NAME);
+        if (name != null) {
+            pc.setName(name, nameOffset);
+            token = skipWhitespaceComment(ts);
+            if (token != null && token.id() == PTokenId.LPAREN) {
+                //params
+                parseParams(pc, ts, PTokenId.RPAREN);
+                token = nextSkipWhitespaceComment(ts);
+            }
+            if (token != null && token.id() == PTokenId.LBRACE) {
+                //we are done for define
+                //internals or skip to RBRACE
+                ts.moveNext();
+                fastForward(pc, ts, STOP_RBRACE);
+            }
+        }
+    }
+
+    //http://docs.puppetlabs.com/puppet/4.2/reference/lang_node_definitions.html
+    private void parseNode(PElement root, TokenSequence<PTokenId> ts) {
+        PNode pc = new PNode(root, ts.offset());
+        if (null == nextSkipWhitespaceComment(ts)) {
+            return;
+        }
+        List<String> names = new ArrayList<>();
+        Token<PTokenId> token = ts.token();
+        while (token != null && PTokenId.LBRACE != token.id()) {
+            if (PTokenId.COMMA != token.id()) {
+                String name = token.text().toString();
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+            token = nextSkipWhitespaceComment(ts);
+        }
+        pc.setNames(names.toArray(new String[0]));
+        if (token != null && token.id() == PTokenId.LBRACE) {
+            //we are done for node
+            //internals or skip to RBRACE
+            ts.moveNext();
+            fastForward(pc, ts, STOP_RBRACE);
+        }
+    }
+
+    //http://docs.puppetlabs.com/puppet/4.2/reference/lang_classes.html
+    private void parseClass(PElement root, TokenSequence<PTokenId> ts) {
+        int offset = ts.offset();
+        Token<PTokenId> token = nextSkipWhitespaceComment(ts);
+        if (null == token) {
+            return;
+        }
+        if (token.id() == PTokenId.IDENTIFIER) {
+            PClass pc = new PClass(root, offset);
+            PIdentifier name = new PIdentifier(pc, ts.offset(), token.text().toString());
+            parseClassInternal(pc, name, ts);
+        }
+    }
+    private void parseClassInternal(PClass pc, PIdentifier name, TokenSequence<PTokenId> ts) {
+        Token<PTokenId> token;
+        pc.setName(name);
+        token = nextSkipWhitespaceComment(ts);
+        if (token != null && token.id() == PTokenId.LPAREN) {
+            //params
+            parseParams(pc, ts, PTokenId.RPAREN);
+            token = nextSkipWhitespaceComment(ts);
+        }
+        if (token != null && token.id() == PTokenId.INHERITS) {
+            //inherits
+            token = nextSkipWhitespaceComment(ts);
+            int off = ts.offset();
+            if (token.id() == PTokenId.IDENTIFIER) {
+                PClassRef ref = new PClassRef(pc, off);
+                ref.setName(new PIdentifier(ref, off, token.text().toString()));
+                pc.setInherits(ref);
+                token = nextSkipWhitespaceComment(ts);
+            } else {
+                token = null;
+            }
+        }
+        if (token != null && token.id() == PTokenId.LBRACE) {
+            //we are done for class
+            //internals or skip to RBRACE
+            ts.moveNext();
+            fastForward(pc, ts, STOP_RBRACE);
+        }
+    }
+
+    /**
+     * @param close RPAREN for class and define parameters, PIPE for lambda parameters
+     */
+    private void parseParams(PParamContainer pc, TokenSequence<PTokenId> ts, PTokenId close) {
+        Set<PTokenId> stops = close == PTokenId.PIPE ? STOP_LAMBDA_PARAM : STOP_PARAM;
+        Token<PTokenId> token = nextSkipWhitespaceComment(ts);
+        String type = null;
+        int offset = 0;
+        PVariableDefinition var = null;
+        PElement def = null;
+        List<PClassParam> params = new ArrayList<>();
+        while (token != null && token.id() != close) {
+            if (type == null && var == null && token.id() == PTokenId.IDENTIFIER) {
+                offset = ts.offset();
+                type = parseType(ts);
+                token = ts.token();
+            }
+            if (var == null && token.id() == PTokenId.VARIABLE) {
+                var = new PVariableDefinition(null, ts.offset(), token.text().toString());
+                type = type != null ? type : "Any";
+                offset = offset != 0 ? offset : ts.offset();
+            }
+            if (token.id() == PTokenId.EQUALS) {
+                def = fastForward(null, ts, stops);
+                token = ts.token();
+                if (token.id() == close) {
+                    break;
+                }
+            }
+            if (token.id() == PTokenId.COMMA) {
+                assert var != null && type != null : "var:" + var + " type:" + type + " for pc:" + pc.toString();
+                PClassParam param = new PClassParam((PElement)pc, offset, var);
+                param.setTypeType(type);
+                if (def != null) {
+                    def.setParent(param);
+                    param.setDefaultValue(def);
+                }
+                params.add(param);
+                type = null;
+                var = null;
+                def = null;
+                offset = 0;
+            }
+            //TODO default values
+            token = nextSkipWhitespaceComment(ts);
+        }
+        if (var != null) {
+            assert type != null;
+            PClassParam param = new PClassParam((PElement)pc, offset, var);
+            param.setTypeType(type);
+            if (def != null) {
+                def.setParent(param);
+                param.setDefaultValue(def);
+            }
+            params.add(param);
+        }
+        pc.setParams(params.toArray(new PClassParam[0]));
+    }
+
+    /**
+     * data type of a parameter including its parameters, eg. <code>Optional[Enum['a', 'b']]</code>,
+     * without whitespace. Leaves ts at the last token of the type.
+     */
+    private String parseType(TokenSequence<PTokenId> ts) {
+        StringBuilder type = new StringBuilder(ts.token().text());
+        int index = ts.index();
+        Token<PTokenId> token = nextSkipWhitespaceComment(ts);
+        if (token == null || token.id() != PTokenId.LBRACKET) {
+            ts.moveIndex(index);
+            ts.moveNext();
+            return type.toString();
+        }
+        int depth = 0;
+        while (token != null) {
+            type.append(token.text());
+            if (token.id() == PTokenId.LBRACKET) {
+                depth++;
+            } else if (token.id() == PTokenId.RBRACKET && --depth == 0) {
+                break;
+            }
+            token = nextSkipWhitespaceComment(ts);
+        }
+        return type.toString();
+    }
+
+    /**
+     * lambda after a function call, eg. <code>each($list) |$x| { }</code>, if there is one.
+     * Leaves ts at the closing brace of the lambda, otherwise at the last token of the call.
+     */
+    private void parseLambda(PFunction function, TokenSequence<PTokenId> ts) {
+        int index = ts.index();
+        Token<PTokenId> token = nextSkipWhitespaceComment(ts);
+        if (token == null || token.id() != PTokenId.PIPE) {
+            ts.moveIndex(index);
+            ts.moveNext();
+            return;
+        }
+        PLambda lambda = new PLambda(function, ts.offset());
+        parseParams(lambda, ts, PTokenId.PIPE);
+        token = nextSkipWhitespaceComment(ts);
+        if (token != null && token.id() == PTokenId.LBRACE) {
+            ts.moveNext();
+            lambda.setBody(fastForward(lambda, ts, STOP_RBRACE));
+        } else if (token != null) {
+            prevBackoffWhitespaceComment(ts);
+        }
+    }
+
+    //https://docs.puppet.com/puppet/4.10/lang_collectors.html
+    private void parseCollector(PCollector collector, TokenSequence<PTokenId> ts) {
+        collector.setQuery(fastForward(collector, ts, STOP_COLLECTOR));
+    }
+
+    private void parseResource(PElement pc, String type, TokenSequence<PTokenId> ts, int resOff) {
+        if (Character.isUpperCase(type.charAt(0))) {
+            PResource resource = new PResource(pc, resOff, type);
+            parseResourceAttrs(resource, ts);
+        } else {
+            Token<PTokenId> token = nextSkipWhitespaceComment(ts);
+            if (token != null) {
+                PElement title;
+                if (token.id() == PTokenId.STRING_LITERAL) {
+                    if ("class".equals(type)) {
+                        String tts = token.text().toString();
+                        title = new PClassRef(null, ts.offset());
+                        ((PClassRef)title).setName(new PIdentifier(title, ts.offset() + 1, tts.substring(1, tts.length() - 1)));
+                    } else {
+                        title = new PString(null, ts.offset(), token.text().toString(), ts.embedded(PStringTokenId.language()));
+                    }
+                } else if (token.id() == PTokenId.VARIABLE) {
+                    title = new PVariable(null, ts.offset(), token.text().toString());
+                } else if (token.id() == PTokenId.LBRACKET) {
+                    PBlob blob = new PBlob(null, ts.offset());
+                    //current token in LBRACKET which we need to skip here, to actually bump into the right RBRACKET
+                    ts.moveNext();
+                    title = fastForwardImpl(blob, ts, STOP_RBRACKET);
+                } else if (token.id() == PTokenId.IDENTIFIER) {
+                    title = new PString(null, ts.offset(), token.text().toString()); //TODO not real string or unquoted string
+                } else {
+                    throw new IllegalStateException("token:" + token.text().toString() + " of type:" + token.id() + " in " + ts.toString());
+                }
+                token = nextSkipWhitespaceComment(ts);
+                if (token != null && token.id() == PTokenId.COLON) {
+                    PResource resource = new PResource(pc, resOff, type);
+                    title.setParent(resource);
+                    resource.setTitle(title);
+                    parseResourceAttrs(resource, ts);
+                }
+            }
+        }
+    }
+
+    private void parseResourceAttrs(PResource resource, TokenSequence<PTokenId> ts) {
+        Token<PTokenId> token = nextSkipWhitespaceComment(ts);
+        String attr = null;
+        PElement val = null;
+        int off = 0;
+        while (token != null && token.id() != PTokenId.RBRACE) {
+            if (attr == null && (token.id() == PTokenId.IDENTIFIER || token.id() == PTokenId.UNLESS)) {
+                off = ts.offset();
+                attr = token.text().toString();
+            }
+            if (token.id() == PTokenId.PARAM_ASSIGN) {
+                nextSkipWhitespaceComment(ts);
+                val = fastForward(null, ts, STOP_ATTRIBUTE);
+                token = ts.token();
+                continue;
+            }
+            if (token.id() == PTokenId.COMMA) {
+//                assert attr != null && val != null : "attr:" + attr + " val:" + val + " in resource:" + resource.toString();
+                PResourceAttribute param = new PResourceAttribute(resource, off, attr);
+                if (val != null) {
+                    val.setParent(param);
+                }
+                param.setValue(val);
+                resource.addAttribute(param);
+                attr = null;
+                val = null;
+                off = 0;
+            }
+            token = nextSkipWhitespaceComment(ts);
+        }
+        if (attr != null) {
+//            assert val != null;
+            PResourceAttribute param = new PResourceAttribute(resource, off, attr);
+            if (val != null) {
+                //a child, so that it moves with the resource and getChildAtOffset reaches it
+                val.setParent(param);
+            }
+            param.setValue(val);
+            resource.addAttribute(param);
+        }
+    }
+
+    private void parseCase(PElement parent, TokenSequence<PTokenId> ts) {
+        PCase pcase = new PCase(parent, ts.offset());
+        nextSkipWhitespaceComment(ts);
+        PBlob caseExpr = fastForward(pcase, ts, STOP_LBRACE);
+        pcase.setControl(caseExpr);
+        Token<PTokenId> token = ts.token();
+        token = nextSkipWhitespaceComment(ts);
+        while (token != null && token.id() != PTokenId.RBRACE) {
+            PBlob cas = fastForward(pcase, ts, STOP_COLON);
+            token = nextSkipWhitespaceComment(ts);
+            PBlob caseBody;
+            if (token != null && token.id() == PTokenId.LBRACE) {
+                token = nextSkipWhitespaceComment(ts);
+                caseBody = fastForward(pcase, ts, STOP_RBRACE);
+                pcase.addCase(cas, caseBody);
+            } else {
+                //huh? what to do here?
+//                caseBody = fastForward(pcase, ts, STOP_RBRACE);
+            }
+            token = nextSkipWhitespaceComment(ts);
+        }
+    }
+    private void parseIf(PElement parent, TokenSequence<PTokenId> ts, boolean includeElseIf) {
+        PCondition cond = new PCondition(parent, ts.offset());
+        nextSkipWhitespaceComment(ts);
+        cond.setCondition(fastForward(cond, ts, STOP_LBRACE));
+        nextSkipWhitespaceComment(ts);
+        cond.setConsequence(fastForward(cond, ts, STOP_RBRACE));
+        nextSkipWhitespaceComment(ts);
+        Token<PTokenId> token = ts.token();
+        while (token.id() == PTokenId.ELSE || (includeElseIf && token.id() == PTokenId.ELSIF)) {
+            if (token.id() == PTokenId.ELSE) {
+                nextSkipWhitespaceComment(ts);
+                if (ts.token().id() == PTokenId.LBRACE) {
+                    nextSkipWhitespaceComment(ts);
+                } else {
+                    //ignore?
+                    return;
+                }
+                cond.setOtherwise(fastForward(cond, ts, STOP_RBRACE));
+                return;
+            } else {
+                nextSkipWhitespaceComment(ts);
+                PCondition par = cond;
+                cond = new PCondition(par, ts.offset());
+                par.setOtherwise(cond);
+                PBlob caseExpr = fastForward(cond, ts, STOP_LBRACE);
+                cond.setCondition(caseExpr);
+                nextSkipWhitespaceComment(ts);
+                cond.setConsequence(fastForward(cond, ts, STOP_RBRACE));
+                nextSkipWhitespaceComment(ts);
+                token = ts.token();
+            }
+        }
+        //we've peeked ahead to see if there was any elsif or else, there wasn't now we need to backoff to make calling fastForward happy
+        prevBackoffWhitespaceComment(ts);
+    }
+
+    private void parseFunction(PFunction pFunction, TokenSequence<PTokenId> ts) {
+        fastForward(pFunction, ts, STOP_RPAREN);
+    }
+
+    private void parseTypeRef(PTypeReference pTypeReference, TokenSequence<PTokenId> ts) {
+        fastForward(pTypeReference, ts, STOP_RBRACKET);
+    }
+
+    private void parseReqList(PFunction reqFunc, TokenSequence<PTokenId> ts) {
+        Token<PTokenId> token = ts.token();
+
+        while (token != null && token.id() == PTokenId.IDENTIFIER) {
+            if ("Class".equals(token.text().toString())) {
+                if (parseClassReference(ts, reqFunc)) break;
+            } else {
+                PClassRef cr = new PClassRef(reqFunc, ts.offset());
+                cr.setName(new PIdentifier(cr, ts.offset(), token.text().toString()));
+            }
+            token = nextSkipWhitespaceComment(ts);
+            if (token != null && token.id() == PTokenId.COMMA) {
+                token = nextSkipWhitespaceComment(ts);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private boolean parseClassReference(TokenSequence<PTokenId> ts, PElement parent) {
+        Token<PTokenId> token;
+        token = nextSkipWhitespaceComment(ts);
+        if (token != null && token.id() == PTokenId.LBRACKET) {
+            token = nextSkipWhitespaceComment(ts);
+            if (token != null && token.id() == PTokenId.STRING_LITERAL) {
+                PClassRef cr = new PClassRef(parent, ts.offset());
+                cr.setName(new PIdentifier(cr, ts.offset() + 1, token.text().toString().substring(1, token.text().toString().length() - 1)));
+                token = nextSkipWhitespaceComment(ts);
+                if (token != null && token.id() == PTokenId.RBRACKET) {
+                    //good
+                } else {
+                    return true; //error hwo to report
+                }
+            } else {
+                return true; //error hwo to report
+            }
+        } else {
+            return true; //error hwo to report
+        }
+        return false;
+    }
+
+    /**
+     * thrown when cancel() was called during parsing, unwinds the parse to the top
+     * level where the partial tree is turned into result.
+     */
+    private static final class ParseCancelledException extends RuntimeException {
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+}
@@ -22,10 +22,22 @@ import org.netbeans.modules.parsing.spi.Parser;
 
 public class PuppetParserResult extends Parser.Result {
     private final PElement root;
+    private final PElementIndex index;
+    private PuppetParserStats stats;
 
     public PuppetParserResult(Snapshot _snapshot, PElement root) {
+        this(_snapshot, root, null);
+    }
+
+    /**
+     * @param previous result whose top level elements root reuses, only their parts of the index are kept
+     */
+    PuppetParserResult(Snapshot _snapshot, PElement root, PuppetParserResult previous) {
         super(_snapshot);
         this.root = root;
+        //reused subtrees are frozen already
+        root.freeze();
+        this.index = new PElementIndex(root, previous != null ? previous.index : null);
     }
     
     @Override
@@ -37,4 +49,22 @@ public class PuppetParserResult extends Parser.Result {
         return root;
     }
 
+    /**
+     * elements of the tree by type, see {@link PElementIndex#get(int) }
+     */
+    public PElementIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * metrics of the parse that produced this result
+     */
+    public PuppetParserStats getStats() {
+        return stats;
+    }
+
+    void setStats(PuppetParserStats stats) {
+        this.stats = stats;
+    }
+
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.parser;
+
+/**
+ * metrics of a single parse, available from {@link PuppetParserResult#getStats()}
+ */
+public final class PuppetParserStats {
+    private final long parseTimeNanos;
+    private final int tokenCount;
+    private final int cancellations;
+    private final boolean incremental;
+    private final boolean cancelled;
+    private final PElement root;
+    private int elementCount = -1;
+
+    PuppetParserStats(long parseTimeNanos, int tokenCount, int cancellations, boolean incremental, boolean cancelled, PElement root) {
+        this.parseTimeNanos = parseTimeNanos;
+        this.tokenCount = tokenCount;
+        this.cancellations = cancellations;
+        this.incremental = incremental;
+        this.cancelled = cancelled;
+        this.root = root;
+    }
+
+    public long getParseTimeNanos() {
+        return parseTimeNanos;
+    }
+
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * number of cancel requests the parser of this file received so far.
+     */
+    public int getCancellations() {
+        return cancellations;
+    }
+
+    /**
+     * true if the result was produced by reparsing only the modified part of the file.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * true if the parse was cancelled and the tree contains only the part parsed before cancellation.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * number of elements in the tree, computed lazily on first call.
+     */
+    public synchronized int getElementCount() {
+        if (elementCount == -1) {
+            elementCount = count(root);
+        }
+        return elementCount;
+    }
+
+    private static int count(PElement element) {
+        int toRet = 1;
+        for (PElement ch : element.getChildren()) {
+            toRet = toRet + count(ch);
+        }
+        return toRet;
+    }
+
+    @Override
+    public String toString() {
+        return "PuppetParserStats[time=" + (parseTimeNanos / 1000) + "us, tokens=" + tokenCount
+                + ", elements=" + getElementCount() + ", cancellations=" + cancellations
+                + ", incremental=" + incremental + ", cancelled=" + cancelled + "]";
+    }
+
+}
@@ -3,21 +3,34 @@ package com.tropyx.nb_puppet.refactoring;
 
 import com.tropyx.nb_puppet.indexer.PPIndexer;
 import com.tropyx.nb_puppet.indexer.PPIndexerFactory;
+import com.tropyx.nb_puppet.indexer.PPOccurrences;
 import com.tropyx.nb_puppet.parser.PClass;
 import com.tropyx.nb_puppet.parser.PElement;
+import com.tropyx.nb_puppet.parser.PElementIndex;
 import com.tropyx.nb_puppet.parser.PFunction;
 import com.tropyx.nb_puppet.parser.PIdentifier;
 import com.tropyx.nb_puppet.parser.PVariable;
 import com.tropyx.nb_puppet.parser.PVariableDefinition;
+import com.tropyx.nb_puppet.parser.PuppetAstCache;
 import com.tropyx.nb_puppet.parser.PuppetParserResult;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import javax.swing.text.BadLocationException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.text.Position;
-import org.netbeans.editor.BaseDocument;
-import org.netbeans.editor.Utilities;
+import org.netbeans.api.queries.FileEncodingQuery;
 import org.netbeans.modules.parsing.api.ParserManager;
 import org.netbeans.modules.parsing.api.ResultIterator;
 import org.netbeans.modules.parsing.api.Source;
@@ -40,8 +53,12 @@ import org.openide.text.PositionRef;
 import org.openide.util.Exceptions;
 
 public class PPWhereUsedQueryPlugin implements RefactoringPlugin {
+    private static final Logger LOG = Logger.getLogger(PPWhereUsedQueryPlugin.class.getName());
+    private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long POLL_MILLIS = 50;
+
     private final WhereUsedQuery refactoring;
-    private boolean cancelled = false;
+    private volatile boolean cancelled = false;
 
     public PPWhereUsedQueryPlugin(WhereUsedQuery refactoring) {
         this.refactoring = refactoring;
@@ -112,9 +129,7 @@ public class PPWhereUsedQueryPlugin implements RefactoringPlugin {
                 List<String> names = new ArrayList<>();
                 Query q = collectVariableCandidateNames(qs, clazzDefineName, var, names);
 //                System.out.println("q:" + q.toString());
-                for (IndexResult res : q.execute(PPIndexer.FLD_ROOT)) {
-                    findVariableLocations(elements, res.getFile(), names);
-                }
+                findLocations(candidates(q.execute(PPIndexer.FLD_ROOT, PPIndexer.FLD_OCCURRENCES)), new VariableFinder(names), sink(elements));
             } catch (IOException ex) {
                 Exceptions.printStackTrace(ex);
             }
@@ -124,9 +139,7 @@ public class PPWhereUsedQueryPlugin implements RefactoringPlugin {
         if (func != null) {
             try {
                 QuerySupport qs = PPIndexerFactory.getQuerySupportFor(context.getDocument(), true);
-                for (IndexResult res : qs.query(PPIndexer.FLD_FUNCTION, func, QuerySupport.Kind.EXACT, PPIndexer.FLD_ROOT)) {
-                    findFunctionLocations(elements, res.getFile(), func);
-                }
+                findLocations(candidates(qs.query(PPIndexer.FLD_FUNCTION, func, QuerySupport.Kind.EXACT, PPIndexer.FLD_ROOT, PPIndexer.FLD_OCCURRENCES)), new FunctionFinder(func), sink(elements));
             } catch (IOException ex) {
                 Exceptions.printStackTrace(ex);
             }
@@ -140,9 +153,7 @@ public class PPWhereUsedQueryPlugin implements RefactoringPlugin {
                         qs.getQueryFactory().field(PPIndexer.FLD_CLASSREF, classRef, QuerySupport.Kind.EXACT),
                         qs.getQueryFactory().field(PPIndexer.FLD_CLASS, classRef, QuerySupport.Kind.EXACT)
                 );
-                for (IndexResult res : q.execute(PPIndexer.FLD_ROOT)) {
-                    findClassRefLocations(elements, res.getFile(), classRef);
-                }
+                findLocations(candidates(q.execute(PPIndexer.FLD_ROOT, PPIndexer.FLD_OCCURRENCES)), new ClassRefFinder(classRef), sink(elements));
             } catch (IOException ex) {
                 Exceptions.printStackTrace(ex);
             }
@@ -231,36 +242,144 @@ public class PPWhereUsedQueryPlugin implements RefactoringPlugin {
         }
     }
 
-    private void findVariableLocations(final RefactoringElementsBag elements, final FileObject file, final List<String> names) {
+    /**
+     * there is a single document per file (see PPBulkIndexer), a file matched by more than one
+     * of the or-ed queries is reported once.
+     */
+    private static List<Candidate> candidates(Collection<? extends IndexResult> results) {
+        Map<FileObject, String[]> files = new LinkedHashMap<>();
+        for (IndexResult res : results) {
+            FileObject file = res.getFile();
+            if (file == null || files.containsKey(file)) {
+                continue;
+            }
+            files.put(file, res.getValues(PPIndexer.FLD_OCCURRENCES));
+        }
+        List<Candidate> toRet = new ArrayList<>(files.size());
+        for (Map.Entry<FileObject, String[]> e : files.entrySet()) {
+            toRet.add(new Candidate(e.getKey(), e.getValue()));
+        }
+        return toRet;
+    }
+
+    private ElementSink sink(final RefactoringElementsBag elements) {
+        return new ElementSink() {
+            @Override
+            public void add(PPWhereUsedElement element) {
+                elements.add(refactoring, element);
+            }
+        };
+    }
+
+    /**
+     * Scans the candidate files in parallel, matches are passed to the sink from this thread
+     * as soon as each file is done (RefactoringElementsBag is not thread safe).
+     * Returns shortly after {@link #cancelRequest()}, files not scanned yet are skipped.
+     */
+    void findLocations(List<Candidate> candidates, Finder finder, ElementSink sink) {
+        if (candidates.isEmpty() || cancelled) {
+            return;
+        }
+        BlockingQueue<PPWhereUsedElement> found = new LinkedBlockingQueue<>();
+        ForkJoinTask<Void> task = POOL.submit(new ScanTask(candidates.toArray(new Candidate[candidates.size()]), 0, candidates.size(), finder, found));
         try {
-            Source source = Source.create(file);
-            ParserManager.parse(Collections.singleton(source), new UserTask() {
-                @Override
-                public void run(ResultIterator resultIterator) throws Exception {
-                    Parser.Result pr = resultIterator.getParserResult();
-                    if (pr instanceof PuppetParserResult) {
-                        PuppetParserResult result = (PuppetParserResult) pr;
-                        if (result.getRootNode() != null) {
-                            for (PVariable var : result.getRootNode().getChildrenOfType(PVariable.class, true)) {
-                                if (names.contains(var.getName().substring(1))) {
-                                    String line = createHightlightTextLine(file, var.getOffset(), var.getName().length());
-                                    elements.add(refactoring, new PPWhereUsedElement(line.trim(), file, boundsForElement(file, var, var.getName())));
-                                }
-                            }
-                            for (PVariableDefinition var : result.getRootNode().getChildrenOfType(PVariableDefinition.class, true)) {
-                                if (names.contains(var.getName().substring(1))) {
-                                    String line = createHightlightTextLine(file, var.getOffset(), var.getName().length());
-                                    elements.add(refactoring, new PPWhereUsedElement(line.trim(), file, boundsForElement(file, var, var.getName())));
-                                }
-                            }
-                        }
-                    }
+            while (!task.isDone() || !found.isEmpty()) {
+                if (cancelled) {
+                    // running scans notice the flag themselves
+                    task.cancel(false);
+                    return;
                 }
-            });
-        } catch (ParseException e) {
+                PPWhereUsedElement element = found.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (element != null) {
+                    sink.add(element);
+                }
+            }
+        } catch (InterruptedException ex) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (task.getException() != null && !cancelled) {
+            LOG.log(Level.INFO, "Where Used search failed", task.getException());
+        }
+    }
+
+    private void scan(Candidate candidate, Finder finder, Queue<PPWhereUsedElement> found) {
+        FileObject file = candidate.file;
+        CloneableEditorSupport es = getEditorSupport(file);
+        List<int[]> occurrences = new ArrayList<>();
+        CharSequence text;
+        try {
+            text = findIndexed(candidate, es, finder, occurrences);
+            if (text == null) {
+                ParsedFile parsed = parse(file, es);
+                if (parsed == null || cancelled) {
+                    return;
+                }
+                finder.find(parsed.index, occurrences);
+                if (occurrences.isEmpty()) {
+                    return;
+                }
+                text = parsed.getText();
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.INFO, "Cannot read " + file, ex);
+            return;
+        }
+        for (int[] occurrence : occurrences) {
+            if (cancelled) {
+                return;
+            }
+            int offset = occurrence[0];
+            int length = occurrence[1];
+            if (offset + length > text.length()) {
+                continue;
+            }
+            String line = createHightlightTextLine(text, offset, length);
+            found.add(new PPWhereUsedElement(line.trim(), file, boundsForElement(es, offset, length)));
         }
     }
-    
+
+    /**
+     * Occurrences in files without unsaved changes come straight from {@link PPIndexer#FLD_OCCURRENCES},
+     * the file is only read for the highlighted lines.
+     * @return text of the file, null if the file needs to be parsed (modified in editor, malformed or stale index data)
+     */
+    private CharSequence findIndexed(Candidate candidate, CloneableEditorSupport es, Finder finder, List<int[]> occurrences) throws IOException {
+        if (candidate.occurrences == null || (es != null && es.isModified())) {
+            return null;
+        }
+        //name of each occurrence, without $ for variables
+        List<String> names = new ArrayList<>();
+        for (String key : finder.getOccurrenceKeys()) {
+            int[] positions = PPOccurrences.find(candidate.occurrences, key);
+            if (positions == null) {
+                occurrences.clear();
+                return null;
+            }
+            String name = key.substring(key.indexOf(':') + 1);
+            for (int i = 0; i < positions.length; i += 2) {
+                occurrences.add(new int[] {positions[i], positions[i + 1]});
+                names.add(name);
+            }
+        }
+        if (occurrences.isEmpty()) {
+            return "";
+        }
+        String text = new String(candidate.file.asBytes(), FileEncodingQuery.getEncoding(candidate.file));
+        for (int i = 0; i < occurrences.size(); i++) {
+            int end = occurrences.get(i)[0] + occurrences.get(i)[1];
+            String name = names.get(i);
+            //the occurrence ends with the name, variables start with $ or { in ${name}
+            if (end > text.length() || !text.regionMatches(end - name.length(), name, 0, name.length())) {
+                //changed on disk, not reindexed yet
+                occurrences.clear();
+                return null;
+            }
+        }
+        return text;
+    }
+
     public static CloneableEditorSupport getEditorSupport(FileObject file) {
         try {
             DataObject dob = DataObject.find(file);
@@ -271,72 +390,242 @@ public class PPWhereUsedQueryPlugin implements RefactoringPlugin {
         return null;
     }
 
-    private void findFunctionLocations(final RefactoringElementsBag elements, final FileObject file, final String func) {
-      try {
-            Source source = Source.create(file);
-            ParserManager.parse(Collections.singleton(source), new UserTask() {
+    /**
+     * Files with an open document are parsed through the parsing api to see unsaved changes,
+     * the rest comes from the on disk {@link PuppetAstCache}.
+     * @return null when the file cannot be parsed
+     */
+    static ParsedFile parse(final FileObject file, CloneableEditorSupport es) throws IOException {
+        if (es == null || !es.isDocumentLoaded()) {
+            byte[] content = file.asBytes();
+            return new ParsedFile(file, new PElementIndex(PuppetAstCache.getRoot(file, content)), content, null);
+        }
+        final ParsedFile[] parsed = new ParsedFile[1];
+        try {
+            ParserManager.parse(Collections.singleton(Source.create(file)), new UserTask() {
                 @Override
                 public void run(ResultIterator resultIterator) throws Exception {
                     Parser.Result pr = resultIterator.getParserResult();
-                    if (pr instanceof PuppetParserResult) {
-                        PuppetParserResult result = (PuppetParserResult) pr;
-                        if (result.getRootNode() != null) {
-                            for (PFunction function : result.getRootNode().getChildrenOfType(PFunction.class, true)) {
-                                if (func.equals(function.getName())) {
-                                    String line = createHightlightTextLine(file, function.getOffset(), func.length());
-                                    elements.add(refactoring, new PPWhereUsedElement(line.trim(), file, boundsForElement(file, function, func)));
-                                }
-                            }
-                        }
+                    if (pr instanceof PuppetParserResult && ((PuppetParserResult) pr).getRootNode() != null) {
+                        parsed[0] = new ParsedFile(file, ((PuppetParserResult) pr).getIndex(), null, resultIterator.getSnapshot().getText());
                     }
                 }
             });
         } catch (ParseException e) {
+            return null;
         }
+        return parsed[0];
     }
 
-    private void findClassRefLocations(final RefactoringElementsBag elements, final FileObject file, final String classRef) {
-      try {
-            Source source = Source.create(file);
-            ParserManager.parse(Collections.singleton(source), new UserTask() {
-                @Override
-                public void run(ResultIterator resultIterator) throws Exception {
-                    Parser.Result pr = resultIterator.getParserResult();
-                    if (pr instanceof PuppetParserResult) {
-                        PuppetParserResult result = (PuppetParserResult) pr;
-                        if (result.getRootNode() != null) {
-                            for (PIdentifier id : result.getRootNode().getChildrenOfType(PIdentifier.class, true)) {
-                                if (classRef.equals(id.getName()) &&
-                                        (id.getParent().isType(PElement.CLASS) || id.getParent().isType(PElement.CLASS_REF))) {
-                                    String line = createHightlightTextLine(file, id.getOffset(), id.getName().length());
-                                    elements.add(refactoring, new PPWhereUsedElement(line.trim(), file, boundsForElement(file, id, id.getName())));
-                                }
-                            }
-                        }
-                    }
+    /**
+     * @return the line containing the occurrence with the occurrence in bold
+     */
+    static String createHightlightTextLine(CharSequence text, int offset, int length) {
+        int rowStart = offset;
+        while (rowStart > 0 && text.charAt(rowStart - 1) != '\n') {
+            rowStart--;
+        }
+        int rowEnd = offset + length;
+        while (rowEnd < text.length() && text.charAt(rowEnd) != '\n' && text.charAt(rowEnd) != '\r') {
+            rowEnd++;
+        }
+        return text.subSequence(rowStart, offset) +
+                "<b>" + text.subSequence(offset, offset + length) +
+                "</b>" + text.subSequence(offset + length, rowEnd);
+    }
+
+    /**
+     * @return null for files without editor support
+     */
+    static PositionBounds boundsForElement(CloneableEditorSupport es, int offset, int length) {
+        if (es == null) {
+            return null;
+        }
+        PositionRef start = es.createPositionRef(offset, Position.Bias.Forward);
+        PositionRef end = es.createPositionRef(offset + length, Position.Bias.Backward);
+        final PositionBounds positionBounds = new PositionBounds(start, end);
+        return positionBounds;
+    }
+
+    /**
+     * tree and text of a candidate file, the text of unopened files is only decoded when something matched.
+     */
+    static final class ParsedFile {
+        final PElementIndex index;
+        private final FileObject file;
+        private final byte[] content;
+        private CharSequence text;
+
+        ParsedFile(FileObject file, PElementIndex index, byte[] content, CharSequence text) {
+            this.file = file;
+            this.index = index;
+            this.content = content;
+            this.text = text;
+        }
+
+        CharSequence getText() {
+            if (text == null) {
+                text = new String(content, FileEncodingQuery.getEncoding(file));
+            }
+            return text;
+        }
+    }
+
+    /**
+     * collects offset and length of the searched occurrences in one file.
+     */
+    interface Finder {
+        void find(PElementIndex index, List<int[]> occurrences);
+
+        /**
+         * @return {@link PPOccurrences} keys of the searched names
+         */
+        List<String> getOccurrenceKeys();
+    }
+
+    /**
+     * file to scan with the stored occurrence values of its documents
+     */
+    static final class Candidate {
+        final FileObject file;
+        /**
+         * null when not known from the index
+         */
+        final String[] occurrences;
+
+        Candidate(FileObject file, String[] occurrences) {
+            this.file = file;
+            this.occurrences = occurrences;
+        }
+    }
+
+    interface ElementSink {
+        void add(PPWhereUsedElement element);
+    }
+
+    private final class VariableFinder implements Finder {
+        private final List<String> names;
+
+        VariableFinder(List<String> names) {
+            this.names = names;
+        }
+
+        @Override
+        public List<String> getOccurrenceKeys() {
+            List<String> keys = new ArrayList<>(names.size());
+            for (String name : names) {
+                keys.add(PPOccurrences.key(PPOccurrences.VARIABLE, name));
+            }
+            return keys;
+        }
+
+        @Override
+        public void find(PElementIndex index, List<int[]> occurrences) {
+            for (PVariable var : index.<PVariable>get(PElement.VARIABLE)) {
+                if (cancelled) {
+                    return;
                 }
-            });
-        } catch (ParseException e) {
+                if (names.contains(var.getName().substring(1))) {
+                    occurrences.add(new int[] {var.getOffset(), var.getName().length()});
+                }
+            }
+            for (PVariableDefinition var : index.<PVariableDefinition>get(PElement.VARIABLE_DEFINITION)) {
+                if (cancelled) {
+                    return;
+                }
+                if (names.contains(var.getName().substring(1))) {
+                    occurrences.add(new int[] {var.getOffset(), var.getName().length()});
+                }
+            }
         }
     }
 
+    final class FunctionFinder implements Finder {
+        private final String func;
 
-    public String createHightlightTextLine(FileObject file, int offset, int length) throws IOException, BadLocationException {
-        CloneableEditorSupport es = getEditorSupport(file);
-        int rowStart = Utilities.getRowStart((BaseDocument)es.openDocument(), offset);
-        int rowEnd = Utilities.getRowEnd((BaseDocument)es.getDocument(), offset);
-        String line = es.getDocument().getText(rowStart, offset - rowStart) +
-                "<b>" + es.getDocument().getText(offset,  length) +
-                "</b>" + es.getDocument().getText(offset + length, rowEnd - (offset + length));
-        return line;
+        FunctionFinder(String func) {
+            this.func = func;
+        }
+
+        @Override
+        public List<String> getOccurrenceKeys() {
+            return Collections.singletonList(PPOccurrences.key(PPOccurrences.FUNCTION, func));
+        }
+
+        @Override
+        public void find(PElementIndex index, List<int[]> occurrences) {
+            for (PFunction function : index.<PFunction>get(PElement.FUNCTION)) {
+                if (cancelled) {
+                    return;
+                }
+                if (func.equals(function.getName())) {
+                    occurrences.add(new int[] {function.getOffset(), func.length()});
+                }
+            }
+        }
     }
 
-    public PositionBounds boundsForElement(FileObject file, PElement var, String text) {
-        CloneableEditorSupport es = getEditorSupport(file);
-        PositionRef start = es.createPositionRef(var.getOffset(), Position.Bias.Forward);
-        PositionRef end = es.createPositionRef(var.getOffset() + text.length(), Position.Bias.Backward);
-        final PositionBounds positionBounds = new PositionBounds(start, end);
-        return positionBounds;
+    private final class ClassRefFinder implements Finder {
+        private final String classRef;
+
+        ClassRefFinder(String classRef) {
+            this.classRef = classRef;
+        }
+
+        @Override
+        public List<String> getOccurrenceKeys() {
+            return Collections.singletonList(PPOccurrences.key(PPOccurrences.CLASS, classRef));
+        }
+
+        @Override
+        public void find(PElementIndex index, List<int[]> occurrences) {
+            for (PIdentifier id : index.<PIdentifier>get(PElement.IDENTIFIER)) {
+                if (cancelled) {
+                    return;
+                }
+                if (classRef.equals(id.getName()) &&
+                        (id.getParent().isType(PElement.CLASS) || id.getParent().isType(PElement.CLASS_REF))) {
+                    occurrences.add(new int[] {id.getOffset(), id.getName().length()});
+                }
+            }
+        }
+    }
+
+    /**
+     * splits the candidates until single files remain, those get scanned in the worker threads.
+     */
+    private final class ScanTask extends RecursiveAction {
+        private final Candidate[] candidates;
+        private final int from;
+        private final int to;
+        private final Finder finder;
+        private final Queue<PPWhereUsedElement> found;
+
+        ScanTask(Candidate[] candidates, int from, int to, Finder finder, Queue<PPWhereUsedElement> found) {
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+            this.finder = finder;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) {
+                return;
+            }
+            if (to - from == 1) {
+                try {
+                    scan(candidates[from], finder, found);
+                } catch (RuntimeException ex) {
+                    //a file the parser chokes on must not abort the whole search
+                    LOG.log(Level.INFO, "Cannot search " + candidates[from].file, ex);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ScanTask(candidates, from, mid, finder, found), new ScanTask(candidates, mid, to, finder, found));
+        }
     }
 
 }
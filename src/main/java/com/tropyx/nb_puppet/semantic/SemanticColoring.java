@@ -16,8 +16,10 @@
  */
 package com.tropyx.nb_puppet.semantic;
 
+import com.tropyx.nb_puppet.FactCatalog;
 import com.tropyx.nb_puppet.PPConstants;
 import com.tropyx.nb_puppet.parser.PElement;
+import com.tropyx.nb_puppet.parser.PElementIndex;
 import com.tropyx.nb_puppet.parser.PFunction;
 import com.tropyx.nb_puppet.parser.PResource;
 import com.tropyx.nb_puppet.parser.PResourceAttribute;
@@ -50,6 +52,7 @@ public class SemanticColoring extends ParserResultTask<PuppetParserResult> {
     public static final String COLOR_RESOURCENAME = "resource-name";
     public static final String COLOR_METHODDECLARATION = "method-declaration";
     public static final String COLOR_LOCAL_VARIABLE = "local-variable";
+    public static final String COLOR_FACT = "fact-variable";
 
     private final static List<String> metaparameters = Arrays.asList(new String[] {
        "alias", "audit", "before", "loglevel", "noop", "notify",
@@ -82,6 +85,7 @@ public class SemanticColoring extends ParserResultTask<PuppetParserResult> {
             return;
         }
         final PElement root = result.getRootNode();
+        final PElementIndex index = result.getIndex();
         final OffsetsBag rootBag = getSemanticHighlightsBag(doc);
         final FontColorSettings fcs = MimeLookup.getLookup(MimePath.get(PPConstants.MIME_TYPE)).lookup(FontColorSettings.class);
         if (root != null) {
@@ -90,27 +94,41 @@ public class SemanticColoring extends ParserResultTask<PuppetParserResult> {
                 public void run() {
                     OffsetsBag bag = new OffsetsBag(doc);
                     AttributeSet functionAttrs = fcs.getTokenFontColors(COLOR_METHODDECLARATION);
-                    for (PFunction function : root.getChildrenOfType(PFunction.class, true)) {
+                    List<PFunction> functions = index.get(PElement.FUNCTION);
+                    for (int i = 0; i < functions.size(); i++) {
+                        PFunction function = functions.get(i);
                         bag.addHighlight(function.getOffset(), function.getOffset() + function.getName().length(), functionAttrs);
                     }
                     AttributeSet resAttrs = fcs.getTokenFontColors(COLOR_RESOURCENAME);
-                    for (PResource res : root.getChildrenOfType(PResource.class, true)) {
+                    List<PResource> resources = index.get(PElement.RESOURCE);
+                    for (int i = 0; i < resources.size(); i++) {
+                        PResource res = resources.get(i);
                         bag.addHighlight(res.getOffset(), res.getOffset() + res.getResourceType().length(), resAttrs);
                     }
                     AttributeSet resAttrAttrs = fcs.getTokenFontColors(COLOR_RESOURCEPARAMETER);
                     AttributeSet metaresAttrAttrs = fcs.getTokenFontColors("resource-metaparameter");
-                    for (PResourceAttribute attr : root.getChildrenOfType(PResourceAttribute.class, true)) {
+                    List<PResourceAttribute> attrs = index.get(PElement.RESOURCE_ATTR);
+                    for (int i = 0; i < attrs.size(); i++) {
+                        PResourceAttribute attr = attrs.get(i);
                         bag.addHighlight(attr.getOffset(), attr.getOffset() + attr.getName().length(), metaparameters.contains(attr.getName()) ? metaresAttrAttrs : resAttrAttrs);
                     }
                     Set<String> varNames = new HashSet<>();
                     AttributeSet localVarsAttrs = fcs.getTokenFontColors(COLOR_LOCAL_VARIABLE);
-                    for (PVariableDefinition v : root.getChildrenOfType(PVariableDefinition.class, true)) {
+                    List<PVariableDefinition> defs = index.get(PElement.VARIABLE_DEFINITION);
+                    for (int i = 0; i < defs.size(); i++) {
+                        PVariableDefinition v = defs.get(i);
                         varNames.add(v.getName());
                         bag.addHighlight(v.getOffset(), v.getOffset() + v.getName().length(), localVarsAttrs);
                     }
-                    for (PVariable v : root.getChildrenOfType(PVariable.class, true)) {
+                    AttributeSet factAttrs = fcs.getTokenFontColors(COLOR_FACT);
+                    FactCatalog facts = FactCatalog.getDefault();
+                    List<PVariable> vars = index.get(PElement.VARIABLE);
+                    for (int i = 0; i < vars.size(); i++) {
+                        PVariable v = vars.get(i);
                         if (varNames.contains(v.getName())) {
                             bag.addHighlight(v.getOffset(), v.getOffset() + v.getName().length(), localVarsAttrs);
+                        } else if (facts.isFact(v.getName())) {
+                            bag.addHighlight(v.getOffset(), v.getOffset() + v.getName().length(), factAttrs);
                         }
                     }
 
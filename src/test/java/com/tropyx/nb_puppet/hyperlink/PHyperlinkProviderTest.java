@@ -46,5 +46,12 @@ public class PHyperlinkProviderTest {
         assertEquals("$var", tup.second());
     }
 
-    
+    @Test
+    public void testQualifiedVariable() {
+        assertEquals("$mod::params::var", PHyperlinkProvider.qualifiedVariable("$mod::params::var"));
+        assertEquals("$mod::params::var", PHyperlinkProvider.qualifiedVariable("${mod::params::var}"));
+        assertEquals("$mod::params::var", PHyperlinkProvider.qualifiedVariable("mod::params::$var"));
+        assertEquals("$java::params::all_versions", PHyperlinkProvider.qualifiedVariable("$java::params::all_versions:"));
+    }
+
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.indexer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PPNameTrieTest {
+
+    @Test
+    public void testFind() {
+        PPNameTrie trie = new PPNameTrie();
+        for (String name : new String[] {"apache", "apache::params", "apache::mod::ssl", "apt", "max_server_name"}) {
+            trie.add(name, name);
+        }
+        assertEquals(Arrays.asList("apache", "apache::mod::ssl", "apache::params"), find(trie, "apa"));
+        assertEquals(Arrays.asList("apache::params"), find(trie, "ap::pa"));
+        assertEquals(Arrays.asList("apache::mod::ssl"), find(trie, "apache::ss"));
+        assertEquals(Arrays.asList("max_server_name"), find(trie, "maxSN"));
+        assertEquals(5, find(trie, "").size());
+        assertTrue(find(trie, "x").isEmpty());
+    }
+
+    @Test
+    public void testFindPrefix() {
+        PPNameTrie trie = new PPNameTrie();
+        for (String name : new String[] {"apache::params::port", "apache::params_ext::port", "apache::mod::params::port", "::port"}) {
+            trie.add(name, name);
+        }
+        Set<String> result = new TreeSet<>();
+        trie.findPrefix("apache::params::po", result);
+        assertEquals(new TreeSet<>(Arrays.asList("apache::params::port")), result);
+        result.clear();
+        trie.findPrefix("::po", result);
+        assertEquals(new TreeSet<>(Arrays.asList("::port")), result);
+        result.clear();
+        trie.findPrefix("apache::x", result);
+        assertTrue(result.isEmpty());
+    }
+
+    @Test
+    public void testReferenceCounting() {
+        PPNameTrie trie = new PPNameTrie();
+        trie.add("port", "apache::params::port");
+        trie.add("port", "apache::params::port");
+        trie.add("port", "nginx::port");
+        trie.remove("port", "apache::params::port");
+        assertEquals(Arrays.asList("apache::params::port", "nginx::port"), find(trie, "po"));
+        trie.remove("port", "apache::params::port");
+        trie.remove("port", "nginx::port");
+        assertTrue(find(trie, "").isEmpty());
+    }
+
+    private static List<Object> find(PPNameTrie trie, String pattern) {
+        Set<String> result = new TreeSet<>();
+        trie.find(pattern, result);
+        return Arrays.asList(result.toArray());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.lexer;
+
+import java.util.Random;
+
+/**
+ * generates puppet manifests from fragments covering the lexer's branches and mutates them,
+ * the same seed always gives the same text. Also used by LexerBenchmark.
+ */
+final class ManifestFuzzer {
+
+    /** statements, each a syntactically sensible piece of manifest */
+    private static final String[] STATEMENTS = {
+        "class %s::config (\n  String $package = 'pkg',\n  $ensure = present,\n) inherits %s::params {\n",
+        "define %s::vhost ($port, $docroot = '/var/www') {\n",
+        "node 'web.example.com', /^db\\d+$/ {\n",
+        "}\n",
+        "  include %s::install, stdlib\n",
+        "  contain %s\n",
+        "  require %s\n",
+        "  $config_dir = \"${::confdir}/%s\"\n",
+        "  file { \"${config_dir}/config.conf\":\n    ensure  => $ensure,\n    mode    => '0644',\n  }\n",
+        "  if $::osfamily == 'RedHat' and $x in $list or !$y {\n    $service = 'svc-rh'\n  } elsif $a =~ /^a.*\\/b$/ {\n  } else {\n    fail(\"unsupported ${::osfamily}\")\n  }\n",
+        "  case $::operatingsystem {\n    'CentOS', 'RedHat': { $conf = '/etc/httpd' }\n    default: { $conf = undef }\n  }\n",
+        "  notify { $name: message => sprintf('%%s', $docroot), loglevel => debug }\n",
+        "  $msg = @(\"END\":text/t)\n    Hello ${name}, $greeting::text\n    ${facts['os']['family']} \\$escaped\n    |- END\n",
+        "  $raw = @(EOT) # trailing comment\n  literal $not_a_variable\n  EOT\n",
+        "  File['/tmp/a'] -> Package[$package] ~> Service['x']\n",
+        "  User <| groups == 'admin' |>\n  Sshkey <<| tag == 'x' |>>\n",
+        "  @user { 'virtual': }\n  @@file { 'exported': }\n",
+        "  $numbers = [1, -2, 3.25, 0x1F, 017]\n",
+        "  # line comment with \"quotes\" and ${braces}\n",
+        "  /* multi\n     line */\n",
+        "  $unicode = 'p\u0159\u00edli\u0161 \uD83D\uDE00'\n",
+        "  $escape = \"\\u0041 \\\" ${a ? { true => 'x', default => 'y' }} $\"\n",
+        "  $a.each |$k, $v| { notice(\"${k}=${v}\") }\n",
+        "\ttag 'a'\r\n  info 'windows line'\r\n",
+    };
+
+    /** short pieces inserted anywhere, including unbalanced ones */
+    private static final String[] FRAGMENTS = {
+        "\"", "'", "${", "}", "{", "$", "$a", "::", ":", "@(", "@(\"END\")\n", "END\n", "|", "|-",
+        "/", "/*", "*/", "#", "\n", "\r\n", " ", "\t", "\\", "\\u00", "=>", "->", "<|", "|>>",
+        "include", "in", "info", "or", "class", "notice", "\uD83D", "\u00e9", "0.", "-", "~",
+    };
+
+    private final Random random;
+
+    ManifestFuzzer(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * @return manifest of given number of random statements
+     */
+    String manifest(int statements) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < statements; i++) {
+            sb.append(String.format(STATEMENTS[random.nextInt(STATEMENTS.length)], "module" + random.nextInt(100), "m"));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return text with given number of random insertions and deletions
+     */
+    String mutate(String text, int edits) {
+        StringBuilder sb = new StringBuilder(text);
+        for (int i = 0; i < edits; i++) {
+            int offset = random.nextInt(sb.length() + 1);
+            if (random.nextBoolean() && offset < sb.length()) {
+                sb.delete(offset, Math.min(sb.length(), offset + 1 + random.nextInt(8)));
+            } else {
+                sb.insert(offset, fragment());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return piece of text to insert, sometimes a whole statement
+     */
+    String fragment() {
+        if (random.nextInt(10) == 0) {
+            return manifest(1);
+        }
+        return FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+    }
+
+    int nextInt(int bound) {
+        return random.nextInt(bound);
+    }
+}
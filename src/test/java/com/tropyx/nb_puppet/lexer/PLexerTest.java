@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.PlainDocument;
+import org.junit.Test;
+import org.netbeans.api.lexer.Language;
+import org.netbeans.api.lexer.Token;
+import org.netbeans.api.lexer.TokenHierarchy;
+import org.netbeans.api.lexer.TokenSequence;
+import static org.junit.Assert.*;
+
+/**
+ * PLexer and PStringLexer against generated and fuzzed manifests, seeds are part of failure messages
+ */
+public class PLexerTest {
+
+    private static final Language<PTokenId> LANGUAGE = new PLangHierarchy().language();
+    private static final int SEEDS = 50;
+
+    @Test
+    public void testTokens() {
+        assertEquals(Arrays.asList("CLASS", "IDENTIFIER", "LBRACE", "NOTICE", "STRING_LITERAL", "RBRACE"),
+                ids("class a::b { notice \"x\" }"));
+        assertEquals(Arrays.asList("VARIABLE", "IN", "VARIABLE", "OR", "INFO", "LPAREN", "RPAREN"),
+                ids("$a in $b or info()"));
+        assertEquals(Arrays.asList("IDENTIFIER", "PARAM_ASSIGN", "VARIABLE"),
+                ids("include_dir => $include"));
+        assertEquals(Arrays.asList("ERROR", "IDENTIFIER", "LBRACE", "STRING_LITERAL", "COLON", "RBRACE"),
+                ids("@user { 'a': }"));
+        assertEquals(Arrays.asList("VARIABLE", "EQUALS", "HEREDOC", "LINE_COMMENT", "INTERPOLATED_HEREDOC_BODY", "IDENTIFIER"),
+                ids("$a = @(\"END\") # c\n  x ${a}\n  |- END\nfoo"));
+        assertEquals(Arrays.asList("HEREDOC", "HEREDOC_BODY"),
+                ids("@(END:json/t)\nEND"));
+        assertEquals(Arrays.asList("IDENTIFIER", "LEXPORTCOLLECTOR", "REXPORTCOLLECTOR", "ORDER_ARROW", "IDENTIFIER", "LCOLLECTOR", "RCOLLECTOR"),
+                ids("Sshkey <<| |>> -> User <||>"));
+    }
+
+    @Test
+    public void testStringTokens() {
+        TokenSequence<PTokenId> ts = TokenHierarchy.create("\"a ${b['x']} $c::d ${$e} \\$f $\"", LANGUAGE).tokenSequence(LANGUAGE);
+        assertTrue(ts.moveNext());
+        TokenSequence<PStringTokenId> ets = ts.embedded(PStringTokenId.language());
+        assertNotNull(ets);
+        List<String> tokens = new ArrayList<>();
+        while (ets.moveNext()) {
+            tokens.add(ets.token().id() + ":" + ets.token().text());
+        }
+        assertEquals(Arrays.asList("TEXT:a ", "INTERPOLATION:${", "VARIABLE:b", "INTERPOLATION:['x']}", "TEXT: ",
+                "VARIABLE:$c::d", "TEXT: ", "INTERPOLATION:${", "VARIABLE:$e", "INTERPOLATION:}", "TEXT: \\$f $"), tokens);
+        assertEquals(Arrays.asList("TEXT:\\$foo"), stringTokens("\"\\$foo\""));
+        assertEquals(Arrays.asList("INTERPOLATION:${", "VARIABLE:a", "INTERPOLATION:}", "TEXT:\\$b"), stringTokens("\"${a}\\$b\""));
+        ts = TokenHierarchy.create("'${a}'", LANGUAGE).tokenSequence(LANGUAGE);
+        assertTrue(ts.moveNext());
+        assertNull(ts.embedded());
+    }
+
+    @Test
+    public void testTokensCoverText() {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            ManifestFuzzer fuzzer = new ManifestFuzzer(seed);
+            String generated = fuzzer.manifest(40);
+            assertCovers("generated, seed " + seed, generated);
+            assertCovers("fuzzed, seed " + seed, fuzzer.mutate(generated, 30));
+        }
+    }
+
+    @Test
+    public void testIncrementalRelex() throws BadLocationException {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            ManifestFuzzer fuzzer = new ManifestFuzzer(seed);
+            PlainDocument doc = new PlainDocument();
+            doc.putProperty(Language.class, LANGUAGE);
+            doc.insertString(0, fuzzer.manifest(20), null);
+            TokenHierarchy<?> hierarchy = TokenHierarchy.get(doc);
+            for (int edit = 0; edit < 100; edit++) {
+                // have the hierarchy lexed, so the edit is an incremental update
+                List<String> before = lexed(doc, hierarchy);
+                int offset = fuzzer.nextInt(doc.getLength() + 1);
+                int remove = Math.min(doc.getLength() - offset, fuzzer.nextInt(3) == 0 ? fuzzer.nextInt(10) : 0);
+                if (remove > 0) {
+                    doc.remove(offset, remove);
+                } else {
+                    doc.insertString(offset, fuzzer.fragment(), null);
+                }
+                String text = doc.getText(0, doc.getLength());
+                TokenSequence<PTokenId> full = TokenHierarchy.create(text, LANGUAGE).tokenSequence(LANGUAGE);
+                assertEquals("seed " + seed + ", edit " + edit + " at " + offset + " of:\n" + text + "\nprevious tokens " + before,
+                        describe(full), lexed(doc, hierarchy));
+            }
+        }
+    }
+
+    private static List<String> lexed(PlainDocument doc, TokenHierarchy<?> hierarchy) {
+        doc.readLock();
+        try {
+            return describe(hierarchy.tokenSequence(LANGUAGE));
+        } finally {
+            doc.readUnlock();
+        }
+    }
+
+    /**
+     * id, offset and text of all tokens, including the embedded ones
+     */
+    private static List<String> describe(TokenSequence<?> ts) {
+        List<String> toRet = new ArrayList<>();
+        ts.moveStart();
+        while (ts.moveNext()) {
+            toRet.add(ts.token().id() + "@" + ts.offset() + ":" + ts.token().text());
+            TokenSequence<?> ets = ts.embedded();
+            if (ets != null) {
+                toRet.addAll(describe(ets));
+            }
+        }
+        return toRet;
+    }
+
+    private static void assertCovers(String message, String text) {
+        TokenSequence<PTokenId> ts = TokenHierarchy.create(text, LANGUAGE).tokenSequence(LANGUAGE);
+        StringBuilder lexed = new StringBuilder();
+        while (ts.moveNext()) {
+            Token<PTokenId> token = ts.token();
+            assertEquals(message, lexed.length(), ts.offset());
+            assertTrue(message + ", empty token at " + ts.offset(), token.length() > 0);
+            lexed.append(token.text());
+            TokenSequence<PStringTokenId> ets = ts.embedded(PStringTokenId.language());
+            if (ets != null) {
+                // embedded tokens are contiguous and stay inside the string
+                int end = ts.offset() + token.length();
+                int expected = -1;
+                while (ets.moveNext()) {
+                    assertTrue(message, ets.offset() >= ts.offset() && ets.offset() + ets.token().length() <= end);
+                    assertTrue(message, expected == -1 || expected == ets.offset());
+                    assertTrue(message + ", empty embedded token at " + ets.offset(), ets.token().length() > 0);
+                    expected = ets.offset() + ets.token().length();
+                }
+            }
+        }
+        assertEquals(message, text, lexed.toString());
+    }
+
+    private static List<String> stringTokens(String text) {
+        TokenSequence<PTokenId> ts = TokenHierarchy.create(text, LANGUAGE).tokenSequence(LANGUAGE);
+        assertTrue(ts.moveNext());
+        TokenSequence<PStringTokenId> ets = ts.embedded(PStringTokenId.language());
+        List<String> tokens = new ArrayList<>();
+        while (ets.moveNext()) {
+            tokens.add(ets.token().id() + ":" + ets.token().text());
+        }
+        return tokens;
+    }
+
+    private static List<String> ids(String text) {
+        TokenSequence<PTokenId> ts = TokenHierarchy.create(text, LANGUAGE).tokenSequence(LANGUAGE);
+        List<String> toRet = new ArrayList<>();
+        while (ts.moveNext()) {
+            if (ts.token().id() != PTokenId.WHITESPACE) {
+                toRet.add(ts.token().id().name());
+            }
+        }
+        return toRet;
+    }
+}
@@ -24,5 +24,26 @@ public class PStringTest {
         assertEquals(17, ch.get(1).getOffset());
     }
 
+    @Test
+    public void testUnbracedAndExpressionVariables() {
+        PString v = new PString(null, 10, "\"$aaa-${bbb['x']} \\$ccc ${$ddd + $eee}\"");
+        List<PVariable> ch = v.getChildrenOfType(PVariable.class, true);
+        assertEquals(4, ch.size());
+        assertEquals("$aaa", ch.get(0).getName());
+        assertEquals(11, ch.get(0).getOffset());
+        assertEquals("$bbb", ch.get(1).getName());
+        assertEquals(17, ch.get(1).getOffset());
+        assertEquals("$ddd", ch.get(2).getName());
+        assertEquals("$eee", ch.get(3).getName());
+    }
+
+    @Test
+    public void testEscapedDollar() {
+        assertTrue(new PString(null, 0, "\"\\$foo\"").getChildrenOfType(PVariable.class, true).isEmpty());
+        List<PVariable> ch = new PString(null, 0, "\"${a}\\$b\"").getChildrenOfType(PVariable.class, true);
+        assertEquals(1, ch.size());
+        assertEquals("$a", ch.get(0).getName());
+    }
+
 
 }
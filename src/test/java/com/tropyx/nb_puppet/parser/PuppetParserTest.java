@@ -17,7 +17,11 @@
 
 package com.tropyx.nb_puppet.parser;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.text.BadLocationException;
 import org.junit.Test;
 import org.netbeans.editor.BaseDocument;
@@ -732,6 +736,322 @@ public class PuppetParserTest extends NbTestCase {
         assertEquals("reduce", cs.get(3).getName());
     }
 
+    @Test
+    public void testParseStats() throws Exception {
+        PuppetParserResult result = doParse("class aaa { $a = 1 }");
+        PuppetParserStats stats = result.getStats();
+        assertNotNull(stats);
+        assertFalse(stats.isIncremental());
+        assertEquals(0, stats.getCancellations());
+        //class, identifier, blob, variable definition + root
+        assertEquals(5, stats.getElementCount());
+        assertTrue(stats.getTokenCount() > 10);
+    }
+
+    @Test
+    public void testCancelledParseReturnsEarly() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        int classes = 5000;
+        for (int i = 0; i < classes; i++) {
+            // 10 lines per class, 50k lines total
+            sb.append("class aaa").append(i).append(" {\n")
+              .append("  $a = 'a'\n")
+              .append("  file { '/tmp/").append(i).append("':\n")
+              .append("    ensure => present,\n")
+              .append("    mode   => '0644',\n")
+              .append("  }\n")
+              .append("  if $a == 'b' {\n")
+              .append("    include bbb\n")
+              .append("  }\n")
+              .append("}\n");
+        }
+        BaseDocument bd = new BaseDocument(false, "text/x-puppet-manifest");
+        bd.insertString(0, sb.toString(), null);
+        Snapshot snap = Source.create(bd).createSnapshot();
+        final PuppetParser pp = new PuppetParser();
+        UserTask ut = new UserTask() {
+
+            @Override
+            public void run(ResultIterator resultIterator) throws Exception {
+            }
+        };
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread canceller = new Thread() {
+            @Override
+            public void run() {
+                //parse resets the flag on start, keep cancelling until it finishes
+                while (!done.get()) {
+                    pp.cancel();
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        };
+        canceller.start();
+        try {
+            pp.parse(snap, ut, null);
+        } finally {
+            done.set(true);
+            canceller.join();
+        }
+        PuppetParserResult result = (PuppetParserResult) pp.getResult(ut);
+        assertTrue(result.getStats().isCancelled());
+        assertTrue(result.getRootNode().getChildren().size() < classes);
+
+        //next parse starts with the flag reset
+        pp.parse(Source.create(bd).createSnapshot(), ut, null);
+        result = (PuppetParserResult) pp.getResult(ut);
+        assertFalse(result.getStats().isCancelled());
+        assertEquals(classes, result.getRootNode().getChildren().size());
+    }
+
+    @Test
+    public void testHeadlessEngine() throws Exception {
+        String text = "class aaa ($a = 1) {\n  file { '/tmp': ensure => present }\n}\ndefine bbb { include aaa }\n";
+        PElement headless = PuppetParserEngine.parse(text);
+        PElement adapter = doParse(text).getRootNode();
+        assertEquals(adapter.toStringRecursive(), headless.toStringRecursive());
+        assertEquals(2, headless.getChildren().size());
+    }
+
+    @Test
+    public void testElementIndex() throws Exception {
+        PuppetParserResult result = doParse("class aaa ($a = 1) {\n  $b = $a\n  file { $b: ensure => present, mode => '0644' }\n  if $a { $c = $b }\n}\n");
+        PElement root = result.getRootNode();
+        PElementIndex index = result.getIndex();
+        assertEquals(root.getChildrenOfType(PVariable.class, true), index.get(PElement.VARIABLE));
+        assertEquals(root.getChildrenOfType(PVariableDefinition.class, true), index.get(PElement.VARIABLE_DEFINITION));
+        assertEquals(root.getChildrenOfType(PResourceAttribute.class, true), index.get(PElement.RESOURCE_ATTR));
+        assertEquals(1, index.count(PElement.CLASS));
+        assertEquals(0, index.count(PElement.NODE));
+        assertTrue(index.get(PElement.ROOT).isEmpty());
+    }
+
+    @Test
+    public void testHeredoc() throws Exception {
+        String text = "class aaa ($a = 1) {\n  file { '/tmp/x':\n    content => @(\"END\"), mode => '0644'\n      value ${a}\n      | END\n  }\n"
+                + "  notify { 'x': message => @(\"END\") }\n  ${a}\n  END\n}\n";
+        PuppetParserResult result = doParse(text);
+        PClass c = assertAndGetClassElement(result);
+        List<PResource> resources = c.getChildrenOfType(PResource.class, true);
+        assertEquals(2, resources.size());
+        assertEquals(2, resources.get(0).getAtributes().size());
+        List<PVariable> vars = c.getChildrenOfType(PVariable.class, true);
+        assertEquals(2, vars.size());
+        assertEquals("$a", vars.get(0).getName());
+        assertEquals(text.indexOf("${a}") + 1, vars.get(0).getOffset());
+        assertEquals(text.lastIndexOf("${a}") + 1, vars.get(1).getOffset());
+        for (PVariable var : vars) {
+            PElement body = var.getParent();
+            assertEquals(PElement.BLOB, body.getType());
+            assertTrue(body.getOffset() <= var.getOffset() && body.getEndOffset() >= var.getEndOffset());
+            assertSame(var, result.getRootNode().getChildAtOffset(var.getOffset() + 1));
+        }
+    }
+
+    @Test
+    public void testSitePp() throws Exception {
+        String text = "$x = 1\ninclude foo\nhiera_include('classes')\nclass { 'apache': port => $x }\n"
+                + "node default {\n  $n = $x\n}\nclass foo { }\nFile { mode => '0644' }\n";
+        PElement root = doParse(text).getRootNode();
+        List<PElement> children = root.getChildren();
+        assertEquals(4, children.size());
+        assertEquals(PElement.BLOB, children.get(0).getType());
+        assertEquals(PElement.NODE, children.get(1).getType());
+        assertEquals(PElement.CLASS, children.get(2).getType());
+        assertEquals(PElement.BLOB, children.get(3).getType());
+        PElement site = children.get(0);
+        assertEquals(0, site.getOffset());
+        assertEquals(text.indexOf("node") - 1, site.getEndOffset());
+        assertEquals("$x", site.getChildrenOfType(PVariableDefinition.class, true).get(0).getName());
+        List<PFunction> functions = site.getChildrenOfType(PFunction.class, true);
+        assertEquals(2, functions.size());
+        assertEquals("include", functions.get(0).getName());
+        assertEquals("hiera_include", functions.get(1).getName());
+        assertEquals("class", site.getChildrenOfType(PResource.class, true).get(0).getResourceType());
+        assertEquals(text.length() - 1, children.get(3).getEndOffset());
+    }
+
+    @Test
+    public void testPuppet4Constructs() throws Exception {
+        String text = "class aaa (Optional[Enum['a', 'b']] $mode = undef, String $s) {\n"
+                + "  $list.each |String $k, $v| { $local = $k }\n  each($list) |$x| { notice($x) }\n"
+                + "  User <| groups == 'admin' |>\n  Sshkey <<| tag == $s |>>\n"
+                + "  File['/tmp/a'] -> Package['p'] ~> Service['x']\n}\n";
+        PuppetParserResult result = doParse(text);
+        PClass c = assertAndGetClassElement(result);
+        assertEquals("Optional[Enum['a','b']]", c.getParams()[0].getTypeType());
+        assertEquals("String", c.getParams()[1].getTypeType());
+
+        List<PLambda> lambdas = c.getChildrenOfType(PLambda.class, true);
+        assertEquals(2, lambdas.size());
+        assertEquals("each", ((PFunction) lambdas.get(0).getParent()).getName());
+        assertEquals(2, lambdas.get(0).getParams().length);
+        assertEquals("String", lambdas.get(0).getParams()[0].getTypeType());
+        assertEquals("$v", lambdas.get(0).getParams()[1].getVariable());
+        assertEquals("$local", lambdas.get(0).getBody().getChildrenOfType(PVariableDefinition.class, true).get(0).getName());
+        assertEquals("$x", lambdas.get(1).getParams()[0].getVariable());
+        assertEquals(lambdas, result.getIndex().get(PElement.LAMBDA));
+
+        List<PCollector> collectors = c.getChildrenOfType(PCollector.class, true);
+        assertEquals(2, collectors.size());
+        assertEquals("user", collectors.get(0).getResource());
+        assertFalse(collectors.get(0).isExported());
+        assertTrue(collectors.get(1).isExported());
+        assertEquals("$s", collectors.get(1).getQuery().getChildrenOfType(PVariable.class, true).get(0).getName());
+
+        List<PRelationship> chain = c.getChildrenOfType(PRelationship.class, true);
+        assertEquals(2, chain.size());
+        assertFalse(chain.get(0).isNotify());
+        assertEquals("File", ((PTypeReference) chain.get(0).getLeft()).getResourceType());
+        assertSame(chain.get(0).getRight(), chain.get(1).getLeft());
+        assertTrue(chain.get(1).isNotify());
+        assertEquals("Service", ((PTypeReference) chain.get(1).getRight()).getResourceType());
+
+        PElement restored = PElementSerializer.read(ByteBuffer.wrap(PElementSerializer.write(result.getRootNode())));
+        assertEquals(result.getRootNode().toStringRecursive(), restored.toStringRecursive());
+        PRelationship notify = restored.getChildrenOfType(PRelationship.class, true).get(1);
+        assertEquals("Package", ((PTypeReference) notify.getLeft()).getResourceType());
+    }
+
+    @Test
+    public void testChildAtOffset() throws Exception {
+        String text = "class aaa ($a = 1) {\n  $b = $a\n  file { $b: ensure => present, mode => '0644' }\n  if $a { $c = $b }\n}\n"
+                + "define bbb ($x) {\n  notify { \"${x}\": require => Class['aaa'] }\n}\n";
+        PElement root = doParse(text).getRootNode();
+        for (int i = 0; i <= text.length(); i++) {
+            assertSame("offset " + i, linearChildAtOffset(root, i), root.getChildAtOffset(i));
+        }
+    }
+
+    private static PElement linearChildAtOffset(PElement element, int offset) {
+        for (PElement child : element.getChildren()) {
+            if (child.getOffset() <= offset && child.getEndOffset() >= offset) {
+                return linearChildAtOffset(child, offset);
+            }
+        }
+        return element;
+    }
+
+    @Test
+    public void testSerializedTree() throws Exception {
+        String text = "class aaa::bbb ($a = 1, $s) inherits aaa {\n  $b = $a\n  file { $b: ensure => present, mode => '0644' }\n"
+                + "  if $a { $c = $b } else { include ccc }\n  case $b { 'x': { notify { 'y': } } default: { } }\n}\n"
+                + "define ddd ($x) {\n  notify { \"${x}\": require => Class['aaa'] }\n}\n"
+                + "node 'a', 'b' {\n  $n = 1\n}\n";
+        PElement root = PuppetParserEngine.parse(text);
+        PElement restored = PElementSerializer.read(ByteBuffer.wrap(PElementSerializer.write(root)));
+        assertEquals(root.toStringRecursive(), restored.toStringRecursive());
+        PClass clazz = restored.getChildrenOfType(PClass.class, false).get(0);
+        assertEquals("aaa", clazz.getInherits().getName());
+        assertEquals("$s", clazz.getParams()[1].getVariable());
+        assertEquals(text.indexOf("aaa::bbb"), clazz.getNameOffset());
+        PResource file = restored.getChildrenOfType(PResource.class, true).get(0);
+        assertEquals(PElement.STRING, file.getAtributes().get(1).getValue().getType());
+        try {
+            PElementSerializer.read(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            fail("garbage accepted");
+        } catch (IOException ex) {
+            //expected
+        }
+        //a damaged entry is either still readable or an IOException, never a runtime exception or a huge array
+        byte[] data = PElementSerializer.write(root);
+        for (int i = 0; i < data.length; i++) {
+            byte[] damaged = data.clone();
+            damaged[i] ^= 0x7F;
+            try {
+                PElementSerializer.read(ByteBuffer.wrap(damaged));
+            } catch (IOException ex) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void testAstCacheEviction() throws Exception {
+        File dir = getWorkDir();
+        long now = System.currentTimeMillis();
+        File recent = new File(dir, "recent.ast");
+        File old = new File(dir, "old.ast");
+        assertTrue(recent.createNewFile());
+        assertTrue(old.createNewFile());
+        assertTrue(old.setLastModified(now - PuppetAstCache.MAX_AGE - 1000));
+        PuppetAstCache.evict(dir, now);
+        assertTrue(recent.isFile());
+        assertFalse(old.isFile());
+    }
+
+    @Test
+    public void testIncrementalReparse() throws Exception {
+        BaseDocument bd = new BaseDocument(false, "text/x-puppet-manifest");
+        bd.insertString(0, "class aaa { $a = 1 }\nclass bbb { $b = $a }\nclass ccc { $c = 1 }\n"
+                + "define ddd ($x) {\n  file { $x: ensure => present }\n}\n", null);
+        PuppetParser pp = new PuppetParser();
+        UserTask ut = new UserTask() {
+
+            @Override
+            public void run(ResultIterator resultIterator) throws Exception {
+            }
+        };
+        pp.parse(Source.create(bd).createSnapshot(), ut, null);
+        PuppetParserResult previous = (PuppetParserResult) pp.getResult(ut);
+        PElement first = previous.getRootNode().getChildren().get(0);
+        PElement last = previous.getRootNode().getChildren().get(3);
+        int editOffset = "class aaa { $a = 1 }\nclass bbb { ".length();
+        bd.insertString(editOffset, "$d = 2 ", null);
+
+        PuppetParserResult result = pp.reparse(previous, Source.create(bd).createSnapshot(), editOffset, editOffset + 7);
+        assertNotNull(result);
+        List<PElement> children = result.getRootNode().getChildren();
+        assertEquals(4, children.size());
+        //unchanged subtrees are reused, not copied
+        assertSame(first, children.get(0));
+        assertSame(last, children.get(3));
+        assertSame(result.getRootNode(), last.getParent());
+
+        //the same tree and index as a full parse, offsets included
+        PElement full = PuppetParserEngine.parse(bd.getText(0, bd.getLength()));
+        full.freeze();
+        assertEquals(dumpWithOffsets(full), dumpWithOffsets(result.getRootNode()));
+        assertEquals(((PDefine) full.getChildren().get(3)).getNameOffset(), ((PDefine) last).getNameOffset());
+        PElementIndex fullIndex = new PElementIndex(full);
+        for (int type = PElement.ROOT; type <= PElement.RELATIONSHIP; type++) {
+            assertEquals(dumpWithOffsets(fullIndex.get(type)), dumpWithOffsets(result.getIndex().get(type)));
+        }
+        List<PVariableDefinition> defs = children.get(1).getChildrenOfType(PVariableDefinition.class, true);
+        assertEquals(2, defs.size());
+        assertEquals("$d", defs.get(0).getName());
+        assertEquals("$b", defs.get(1).getName());
+
+        //unbalanced edit needs full parse
+        bd.insertString(editOffset, "} ", null);
+        assertNull(pp.reparse(result, Source.create(bd).createSnapshot(), editOffset, editOffset + 2));
+    }
+
+    private static String dumpWithOffsets(PElement element) {
+        StringBuilder sb = new StringBuilder();
+        dumpWithOffsets(element, "", sb);
+        return sb.toString();
+    }
+
+    private static String dumpWithOffsets(List<PElement> elements) {
+        StringBuilder sb = new StringBuilder();
+        for (PElement element : elements) {
+            sb.append(element).append(' ').append(element.getOffset()).append('-').append(element.getEndOffset()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void dumpWithOffsets(PElement element, String indent, StringBuilder sb) {
+        sb.append(indent).append(element).append(' ').append(element.getOffset()).append('-').append(element.getEndOffset()).append('\n');
+        for (PElement ch : element.getChildren()) {
+            dumpWithOffsets(ch, indent + "  ", sb);
+        }
+    }
+
     private PClass assertAndGetClassElement(PuppetParserResult result) {
         PElement nd = result.getRootNode();
         assertNotNull(nd);
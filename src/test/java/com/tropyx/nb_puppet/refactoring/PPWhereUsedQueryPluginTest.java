@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 mkleint
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tropyx.nb_puppet.refactoring;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.netbeans.junit.NbTestCase;
+import org.netbeans.modules.refactoring.api.WhereUsedQuery;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileSystem;
+import org.openide.filesystems.FileUtil;
+import org.openide.util.Lookup;
+
+public class PPWhereUsedQueryPluginTest extends NbTestCase {
+
+    private static final int FILES = 2000;
+    private static final int INCLUDES = 200;
+
+    public PPWhereUsedQueryPluginTest(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        clearWorkDir();
+        // parsed trees get cached under the userdir
+        System.setProperty("netbeans.user", getWorkDirPath());
+    }
+
+    @Test
+    public void testCancelQuery() throws Exception {
+        FileSystem fs = FileUtil.createMemoryFileSystem();
+        final List<PPWhereUsedQueryPlugin.Candidate> files = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            StringBuilder sb = new StringBuilder("class module").append(i).append(" {\n");
+            for (int j = 0; j < INCLUDES; j++) {
+                sb.append("  include other").append(j).append("\n");
+            }
+            sb.append("}\n");
+            FileObject fo = fs.getRoot().createData("module" + i + ".pp");
+            try (OutputStream out = fo.getOutputStream()) {
+                out.write(sb.toString().getBytes("UTF-8"));
+            }
+            files.add(new PPWhereUsedQueryPlugin.Candidate(fo, null));
+        }
+        final PPWhereUsedQueryPlugin plugin = new PPWhereUsedQueryPlugin(new WhereUsedQuery(Lookup.EMPTY));
+        final AtomicInteger found = new AtomicInteger();
+        final CountDownLatch first = new CountDownLatch(1);
+        Thread query = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                plugin.findLocations(files, plugin.new FunctionFinder("include"), new PPWhereUsedQueryPlugin.ElementSink() {
+                    @Override
+                    public void add(PPWhereUsedElement element) {
+                        found.incrementAndGet();
+                        first.countDown();
+                    }
+                });
+            }
+        });
+        query.start();
+        assertTrue("no result streamed", first.await(30, TimeUnit.SECONDS));
+        plugin.cancelRequest();
+        query.join(2000);
+        assertFalse("query still running 2s after cancel", query.isAlive());
+        assertTrue(found.get() < FILES * INCLUDES);
+    }
+}